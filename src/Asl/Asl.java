@@ -59,6 +59,32 @@ public class Asl{
     private static String tracefile = null;
     /** Flag to indicate whether the program must be executed after parsing. */
     private static boolean execute = true;
+    /** Locks used by the critical sections of the generated code. */
+    private static Interp.LockMode lockmode = Interp.LockMode.NAMED;
+    /** Number of locks protecting the elements of vectors (striped locks). */
+    private static int stripes = 64;
+    /** Initialization of the declared vectors. */
+    private static Interp.AllocMode allocmode = Interp.AllocMode.ZERO;
+    /** Default schedule of the parallel loops (null for the OpenMP default). */
+    private static Interp.ScheduleKind schedule = null;
+    /** Chunk size of the default schedule (0 for none). */
+    private static int chunk = 0;
+    /** Depth of the spawned tasks from which no more tasks are created (0 for no limit). */
+    private static int taskdepth = 0;
+    /** Grain size of the tasks of a taskloop (0 for the OpenMP default). */
+    private static int grainsize = 0;
+    /** Flag to indicate whether the AST must be optimized before generating the code. */
+    private static boolean optimize = true;
+    /** Flag to indicate whether the independent loops of the serial code must be parallelized. */
+    private static boolean autopar = false;
+    /** Flag to indicate whether the decisions of the analyses must be reported. */
+    private static boolean verbose = false;
+    /** Flag to indicate whether the generated program must report the times of its parallel constructs. */
+    private static boolean profile = false;
+    /** File where the generated program writes the timeline of its parallel constructs (null if no timeline). */
+    private static String timelinefile = null;
+    /** Default places of the threads of the generated program (null for the OpenMP default). */
+    private static String places = null;
       
     /** Main program that invokes the parser and the interpreter. */
     
@@ -119,7 +145,18 @@ public class Asl{
             Interp I = null;
             int linenumber = -1;
             //try {
+                new ArrayFlattener(t).run(); // multidimensional arrays
+                if (optimize) new Optimizer(t).run(); // inlining and constants
                 I = new Interp(t, tracefile); // prepares the interpreter
+                I.setLockMode(lockmode, stripes);
+                I.setAllocMode(allocmode);
+                if (schedule != null) I.setDefaultSchedule(schedule, chunk);
+                I.setTaskCutoff(taskdepth, grainsize);
+                I.setAutoParallel(autopar);
+                I.setVerbose(verbose);
+                I.setProfile(profile);
+                I.setTimeline(timelinefile);
+                I.setPlaces(places);
                 I.Run();                  // Executes the code
            /* } catch (RuntimeException e) {
                 if (I != null) linenumber = I.lineNumber();
@@ -149,6 +186,10 @@ public class Asl{
         Option help = new Option("help", "print this message");
         Option noexec = new Option("noexec", "do not execute the program");
         Option dot = new Option("dot", "dump the AST in dot format");
+        Option noopt = new Option("noopt", "do not inline functions nor propagate constants");
+        Option autoparallel = new Option("autopar", "parallelize the independent loops of the serial code");
+        Option verbosity = new Option("verbose", "report the decisions of the analyses");
+        Option profiling = new Option("profile", "report at exit the times of the parallel constructs of the program");
         Option ast = OptionBuilder
                         .withArgName ("file")
                         .hasArg()
@@ -159,6 +200,46 @@ public class Asl{
                         .hasArg()
                         .withDescription ("write a trace of function calls during the execution of the program")
                         .create ("trace");
+        Option timeline = OptionBuilder
+                        .withArgName ("file")
+                        .hasArg()
+                        .withDescription ("make the program write at exit a timeline of its parallel constructs (Chrome trace format)")
+                        .create ("timeline");
+        Option locks = OptionBuilder
+                        .withArgName ("mode")
+                        .hasArg()
+                        .withDescription ("locks of the critical sections: global, named (default) or striped")
+                        .create ("locks");
+        Option nstripes = OptionBuilder
+                        .withArgName ("n")
+                        .hasArg()
+                        .withDescription ("number of striped locks protecting the elements of vectors (default 64)")
+                        .create ("stripes");
+        Option alloc = OptionBuilder
+                        .withArgName ("mode")
+                        .hasArg()
+                        .withDescription ("initialization of declared vectors: zero (default), uninit or firsttouch")
+                        .create ("alloc");
+        Option sched = OptionBuilder
+                        .withArgName ("kind[,chunk]")
+                        .hasArg()
+                        .withDescription ("default schedule of parallel_for: static, dynamic, guided, auto or runtime")
+                        .create ("schedule");
+        Option depth = OptionBuilder
+                        .withArgName ("n")
+                        .hasArg()
+                        .withDescription ("depth of the spawned tasks from which no more tasks are created")
+                        .create ("taskdepth");
+        Option place = OptionBuilder
+                        .withArgName ("places")
+                        .hasArg()
+                        .withDescription ("default places of the threads: threads, cores, ll_caches, numa_domains, sockets or a list")
+                        .create ("places");
+        Option grain = OptionBuilder
+                        .withArgName ("n")
+                        .hasArg()
+                        .withDescription ("minimum number of iterations of the tasks of a taskloop")
+                        .create ("grainsize");
                                        
         Options options = new Options();
         options.addOption(help);
@@ -166,6 +247,18 @@ public class Asl{
         options.addOption(ast);
         options.addOption(trace);
         options.addOption(noexec);
+        options.addOption(noopt);
+        options.addOption(autoparallel);
+        options.addOption(verbosity);
+        options.addOption(profiling);
+        options.addOption(timeline);
+        options.addOption(locks);
+        options.addOption(nstripes);
+        options.addOption(alloc);
+        options.addOption(sched);
+        options.addOption(depth);
+        options.addOption(grain);
+        options.addOption(place);
         CommandLineParser clp = new GnuParser();
         CommandLine line = null;
 
@@ -202,6 +295,94 @@ public class Asl{
         // Option -noexec
         if (line.hasOption ("noexec")) execute = false;
 
+        // Option -noopt
+        if (line.hasOption ("noopt")) optimize = false;
+
+        // Option -autopar
+        if (line.hasOption ("autopar")) autopar = true;
+
+        // Option -verbose
+        if (line.hasOption ("verbose")) verbose = true;
+
+        // Option -profile
+        if (line.hasOption ("profile")) profile = true;
+
+        // Option -timeline file
+        if (line.hasOption ("timeline")) timelinefile = line.getOptionValue ("timeline");
+
+        // Option -locks mode
+        if (line.hasOption ("locks")) {
+            try {
+                lockmode = Interp.LockMode.valueOf(line.getOptionValue ("locks").toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println ("Incorrect lock mode: " + line.getOptionValue ("locks"));
+                return false;
+            }
+        }
+
+        // Option -stripes n
+        if (line.hasOption ("stripes")) {
+            stripes = readPositive(line.getOptionValue ("stripes"));
+            if (stripes <= 0) {
+                System.err.println ("Incorrect number of stripes: " + line.getOptionValue ("stripes"));
+                return false;
+            }
+        }
+
+        // Option -alloc mode
+        if (line.hasOption ("alloc")) {
+            try {
+                allocmode = Interp.AllocMode.valueOf(line.getOptionValue ("alloc").toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println ("Incorrect allocation mode: " + line.getOptionValue ("alloc"));
+                return false;
+            }
+        }
+
+        // Option -schedule kind[,chunk]
+        if (line.hasOption ("schedule")) {
+            String[] fields = line.getOptionValue ("schedule").split(",");
+            try {
+                schedule = Interp.ScheduleKind.valueOf(fields[0].trim().toUpperCase());
+                if (fields.length > 1) chunk = Integer.parseInt(fields[1].trim());
+                if (fields.length > 2 || (fields.length > 1 && chunk <= 0) ||
+                    (chunk > 0 && (schedule == Interp.ScheduleKind.AUTO || schedule == Interp.ScheduleKind.RUNTIME)))
+                    throw new IllegalArgumentException();
+            } catch (IllegalArgumentException e) {
+                System.err.println ("Incorrect schedule: " + line.getOptionValue ("schedule"));
+                return false;
+            }
+        }
+
+        // Option -taskdepth n
+        if (line.hasOption ("taskdepth")) {
+            taskdepth = readPositive(line.getOptionValue ("taskdepth"));
+            if (taskdepth <= 0) {
+                System.err.println ("Incorrect task depth: " + line.getOptionValue ("taskdepth"));
+                return false;
+            }
+        }
+
+        // Option -grainsize n
+        if (line.hasOption ("grainsize")) {
+            grainsize = readPositive(line.getOptionValue ("grainsize"));
+            if (grainsize <= 0) {
+                System.err.println ("Incorrect grain size: " + line.getOptionValue ("grainsize"));
+                return false;
+            }
+        }
+
+        // Option -places places
+        if (line.hasOption ("places")) {
+            places = line.getOptionValue ("places").trim();
+            // an abstract name (with an optional number of places) or a list of intervals
+            if (!places.matches("(threads|cores|ll_caches|numa_domains|sockets)(\\(\\d+\\))?") &&
+                !places.matches("[{}0-9:,! ]+")) {
+                System.err.println ("Incorrect places: " + line.getOptionValue ("places"));
+                return false;
+            }
+        }
+
         // Remaining arguments (the input file)
         String[] files = line.getArgs();
         if (files.length != 1) {
@@ -214,5 +395,14 @@ public class Asl{
         infile = files[0];
         return true;
     }
+
+    /** Reads a positive integer option. It returns 0 if it is not valid. */
+    private static int readPositive(String value) {
+        try {
+            return Math.max(Integer.parseInt(value), 0);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
 }
 
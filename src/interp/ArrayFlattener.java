@@ -0,0 +1,235 @@
+package interp;
+
+import parser.*;
+import java.util.HashMap;
+
+/**
+ * Class to lower the multidimensional arrays of the AST to vectors.
+ * An array int m[R][C] is stored in a single vector of R*C elements
+ * in row-major order, so that m[i][j] is m[i*C + j]. The extents but
+ * the first one are used directly when they are constants or variables
+ * that are not modified after the declaration, otherwise they are kept
+ * in the variables _m_d1, _m_d2, ... The extents of the array parameters
+ * are passed in the hidden parameters _m_d1, _m_d2, ... following the
+ * array. After the lowering, the strides of the accesses are visible
+ * to the analyses of the interpreter (affine subscripts, strength
+ * reduction, disjoint writes) and to the C++ compiler.
+ */
+public class ArrayFlattener {
+
+    /** Root of the AST (PROG) */
+    private AslTree root;
+
+    /** Map from the names of the functions to the dimensions of their parameters (0 for scalars) */
+    private HashMap<String,int[]> paramDims;
+
+    /** Map from the names of the functions to the parameters passed by reference */
+    private HashMap<String,boolean[]> paramRefs;
+
+    /** Dimensions of the variables of the function being lowered (0 for scalars) */
+    private HashMap<String,Integer> dimensions;
+
+    /** Extents of the arrays of the function being lowered (the first one is not needed) */
+    private HashMap<String,AslTree[]> extents;
+
+    /** Constructor of the lowering of the AST */
+    public ArrayFlattener(AslTree T) {
+        root = T;
+        paramDims = new HashMap<String,int[]>();
+        paramRefs = new HashMap<String,boolean[]>();
+        for (int i = 0; i < T.getChildCount(); ++i) {
+            AslTree f = T.getChild(i);
+            AslTree params = f.getChild(1);
+            int[] dims = new int[params.getChildCount()];
+            boolean[] refs = new boolean[params.getChildCount()];
+            for (int j = 0; j < dims.length; ++j) {
+                dims[j] = params.getChild(j).getChildCount() - 1;
+                refs[j] = params.getChild(j).getChild(0).getType() == AslLexer.PREF;
+            }
+            if (f.getType() == AslLexer.MAIN) continue;
+            paramDims.put(f.getText(), dims);
+            paramRefs.put(f.getText(), refs);
+        }
+    }
+
+    /** Lowers the arrays of all the functions. */
+    public void run() {
+        for (int i = 0; i < root.getChildCount(); ++i) {
+            AslTree f = root.getChild(i);
+            dimensions = new HashMap<String,Integer>();
+            extents = new HashMap<String,AslTree[]>();
+            lowerParams(f.getChild(1));
+            collectArrays(f.getChild(2));
+            lower(f.getChild(2));
+        }
+    }
+
+    /** Returns the name of the variable keeping an extent of an array. */
+    private static String extentName(String array, int dim) {
+        return "_" + array + "_d" + dim;
+    }
+
+    /** Declares the array parameters as vectors followed by their extents. */
+    private void lowerParams(AslTree params) {
+        for (int i = params.getChildCount() - 1; i >= 0; --i) {
+            AslTree p = params.getChild(i);
+            int dims = p.getChildCount() - 1;
+            String name = p.getChild(0).getText();
+            dimensions.put(name, dims);
+            AslTree[] arrayExtents = new AslTree[dims];
+            for (int d = dims - 1; d >= 1; --d) {
+                arrayExtents[d] = new AslTree(AslLexer.ID, extentName(name, d), p);
+                p.deleteChild(d + 1);
+                AslTree extent = new AslTree(AslLexer.INT, "int", p);
+                extent.addChild(new AslTree(AslLexer.PVALUE, extentName(name, d), p));
+                params.insertChild(i + 1, extent);
+            }
+            if (dims > 1) extents.put(name, arrayExtents);
+        }
+    }
+
+    /** Collects the dimensions of the arrays declared in a function. */
+    private void collectArrays(AslTree t) {
+        if (t.getType() == AslLexer.DECL) {
+            AslTree identNode = t.getChild(1);
+            boolean isArray = identNode.getType() == AslLexer.OPENC;
+            dimensions.put(isArray ? identNode.getChild(0).getText() : identNode.getText(),
+                           isArray ? identNode.getChildCount() - 1 : 0);
+        }
+        for (int i = 0; i < t.getChildCount(); ++i) collectArrays(t.getChild(i));
+    }
+
+    /** Returns the number of dimensions of a variable (0 for scalars and unknown names). */
+    private int getDimensions(String name) {
+        Integer dims = dimensions.get(name);
+        return dims == null ? 0 : dims;
+    }
+
+    private void lower(AslTree t) {
+        for (int i = 0; i < t.getChildCount(); ++i) {
+            AslTree c = t.getChild(i);
+            // the extents that may change are assigned before the declaration of the array
+            if (c.getType() == AslLexer.DECL && c.getChild(1).getType() == AslLexer.OPENC &&
+                c.getChild(1).getChildCount() > 2) {
+                AslTree identNode = c.getChild(1);
+                String name = identNode.getChild(0).getText();
+                AslTree size = identNode.getChild(1);
+                int dims = identNode.getChildCount() - 1;
+                AslTree[] arrayExtents = new AslTree[dims];
+                for (int d = 1; d < dims; ++d) {
+                    AslTree extent = identNode.getChild(d + 1);
+                    lower(extent);
+                    if (Optimizer.getIntConstant(extent) == null &&
+                        (extent.getType() != AslLexer.ID || isModifiedAfter(t, i, extent.getText()))) {
+                        AslTree decl = new AslTree(AslLexer.DECL, "DECL", c);
+                        decl.addChild(new AslTree(AslLexer.INT, "int", c));
+                        decl.addChild(new AslTree(AslLexer.ID, extentName(name, d), c));
+                        AslTree assign = new AslTree(AslLexer.ASSIGN, "=", c);
+                        assign.addChild(new AslTree(AslLexer.ID, extentName(name, d), c));
+                        assign.addChild(extent);
+                        t.insertChild(i++, decl);
+                        t.insertChild(i++, assign);
+                        extent = new AslTree(AslLexer.ID, extentName(name, d), c);
+                    }
+                    arrayExtents[d] = extent;
+                    size = multiply(size, extent.dupTree());
+                }
+                extents.put(name, arrayExtents);
+                while (identNode.getChildCount() > 2) identNode.deleteChild(2);
+                identNode.setChild(1, size);
+                lower(size);
+                continue;
+            }
+            if (c.getType() == AslLexer.OPENC) lowerAccess(c);
+            else if (c.getType() == AslLexer.FUNCALL) lowerArguments(c);
+            lower(c);
+        }
+    }
+
+    /** Computes the position of an element in the vector of its array. */
+    private void lowerAccess(AslTree t) {
+        String name = t.getChild(0).getText();
+        int subscripts = t.getChildCount() - 1;
+        int dims = getDimensions(name);
+        if (dims > 0 && subscripts != dims)
+            throw new RuntimeException ("The array " + name + " has " + dims + " dimensions but is accessed with " +
+                                        subscripts + " subscripts:" + t.getLine());
+        if (dims == 0 && subscripts > 1)
+            throw new RuntimeException ("The variable " + name + " is not a multidimensional array:" + t.getLine());
+        AslTree index = t.getChild(1);
+        for (int d = 1; d < subscripts; ++d) {
+            AslTree sum = new AslTree(AslLexer.PLUS, "+", t);
+            sum.addChild(multiply(index, extents.get(name)[d].dupTree()));
+            sum.addChild(t.getChild(d + 1));
+            index = sum;
+        }
+        while (t.getChildCount() > 2) t.deleteChild(2);
+        t.setChild(1, index);
+    }
+
+    /** Passes the extents of the arrays after them. */
+    private void lowerArguments(AslTree t) {
+        String fname = t.getChild(0).getText();
+        int[] dims = paramDims.get(fname);
+        AslTree args = t.getChild(1);
+        for (int i = args.getChildCount() - 1; i >= 0; --i) {
+            AslTree a = args.getChild(i);
+            int argDims = a.getType() == AslLexer.ID ? getDimensions(a.getText()) : 0;
+            int paramDim = dims != null && i < dims.length ? dims[i] : 0;
+            if (paramDim > 1 && argDims != paramDim)
+                throw new RuntimeException ("The argument " + i + " of " + fname + " should be an array of " + paramDim +
+                                            " dimensions:" + t.getLine());
+            if (argDims > 1 && paramDim != argDims)
+                throw new RuntimeException ("The argument " + i + " of " + fname + " is an array of " + argDims +
+                                            " dimensions:" + t.getLine());
+            for (int d = argDims - 1; d >= 1; --d)
+                args.insertChild(i + 1, extents.get(a.getText())[d].dupTree());
+        }
+    }
+
+    /**
+     * Checks whether a variable may be modified by the instructions
+     * following the i-th one of a block, or by the i-th one if the
+     * block is repeated.
+     */
+    private boolean isModifiedAfter(AslTree block, int i, String name) {
+        for (AslTree node = block; node.getParent().getType() != AslLexer.PROG; node = (AslTree) node.getParent()) {
+            int type = node.getType();
+            if (type == AslLexer.FOR || type == AslLexer.PARALLEL_FOR || type == AslLexer.TASKLOOP) return true;
+        }
+        // the instructions following the enclosing ones, up to the block of the function
+        for (AslTree node = block; ; node = (AslTree) node.getParent()) {
+            for (int j = i + 1; j < node.getChildCount(); ++j) {
+                if (isModified(node.getChild(j), name)) return true;
+            }
+            if (node.getParent().getParent().getType() == AslLexer.PROG) return false;
+            i = node.getChildIndex();
+        }
+    }
+
+    /** Checks whether a variable may be modified in a subtree (or by the functions it is passed to). */
+    private boolean isModified(AslTree t, String name) {
+        int type = t.getType();
+        if ((type == AslLexer.ASSIGN || type == AslLexer.READ || type == AslLexer.PAR_ASSIGN) &&
+            t.getChild(0).getType() == AslLexer.ID && t.getChild(0).getText().equals(name)) return true;
+        if (type == AslLexer.FUNCALL) {
+            boolean[] refs = paramRefs.get(t.getChild(0).getText());
+            AslTree args = t.getChild(1);
+            for (int i = 0; i < args.getChildCount(); ++i) {
+                if (args.getChild(i).getType() == AslLexer.ID && args.getChild(i).getText().equals(name) &&
+                    (refs == null || i >= refs.length || refs[i])) return true;
+            }
+        }
+        for (int i = 0; i < t.getChildCount(); ++i) {
+            if (isModified(t.getChild(i), name)) return true;
+        }
+        return false;
+    }
+
+    private static AslTree multiply(AslTree a, AslTree b) {
+        AslTree product = new AslTree(AslLexer.MUL, "*", a);
+        product.addChild(a);
+        product.addChild(b);
+        return product;
+    }
+}
@@ -29,6 +29,7 @@ package interp;
 
 import org.antlr.runtime.tree.*;
 import org.antlr.runtime.Token;
+import org.antlr.runtime.CommonToken;
 
 /**
  * Class to extend the nodes of the AST. It includes two fields
@@ -50,6 +51,25 @@ public class AslTree extends CommonTree {
         super(t);
     }
 
+    /**
+     * Constructor of a node created by the compiler. The node has the
+     * line of another node, used to report the errors.
+     */
+    public AslTree(int type, String text, AslTree origin) {
+        super(new CommonToken(type, text));
+        token.setLine(origin.getLine());
+        token.setCharPositionInLine(origin.getCharPositionInLine());
+    }
+
+    /** Returns a copy of the tree rooted at this node. */
+    public AslTree dupTree() {
+        AslTree copy = new AslTree(new CommonToken(token));
+        copy.intValue = intValue;
+        copy.strValue = strValue;
+        for (int i = 0; i < getChildCount(); ++i) copy.addChild(getChild(i).dupTree());
+        return copy;
+    }
+
     /** Function to get the child of the node. */
     public AslTree getChild(int i) {
         return (AslTree) super.getChild(i);
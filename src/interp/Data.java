@@ -50,10 +50,12 @@ public class Data {
 
     private boolean isShared;
 
-    Data(String s) { type = s; isVector = false; isShared = true; }
+    private boolean isReference;
+
+    Data(String s) { type = s; isVector = false; isShared = true; isReference = false; }
 
     /** Copy constructor */
-    Data(Data d) { type = d.type; isVector = d.isVector; isShared = d.isShared; } //this must be checked
+    Data(Data d) { type = d.type; isVector = d.isVector; isShared = d.isShared; isReference = d.isReference; } //this must be checked
 
     /** Returns the type of data */
     public String getType() { return type; }
@@ -77,6 +79,11 @@ public class Data {
     /** Indicates whether the data is a vector */
     public void setVector() { isVector = true; }
 
+    /** Indicates whether the data is a parameter passed by reference */
+    public boolean isReference() { return isReference; }
+
+    public void setReference() { isReference = true; }
+
     /** Returns a string representing the data in textual form. */
     public String toString() {
         return "The type is " + type + " isVector boolean has value " + isVector;
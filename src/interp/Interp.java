@@ -30,6 +30,8 @@ package interp;
 import parser.*;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Scanner;
 import java.util.Iterator;
 import java.lang.StringBuilder;
@@ -81,6 +83,156 @@ public class Interp {
 
     /** Says if the compilation is done in notSync region */
     private boolean inNotSyncRegion = false;
+
+    /** Kinds of synchronization of an assignment to a shared variable */
+    private enum SyncKind { NONE, ATOMIC_UPDATE, ATOMIC_WRITE, CRITICAL }
+
+    /**
+     * Locks used by the critical sections: a single global lock, one named
+     * critical section per variable, or named critical sections for scalars
+     * and a table of striped locks for the elements of vectors.
+     */
+    public enum LockMode { GLOBAL, NAMED, STRIPED }
+
+    /** Locks used by the critical sections */
+    private LockMode lockMode = LockMode.NAMED;
+
+    /** Number of locks in the striped table (STRIPED mode) */
+    private int lockStripes = 64;
+
+    /**
+     * Initialization of the declared vectors: filled with zeros, left
+     * uninitialized, or filled with zeros in parallel with a static
+     * schedule, so that each thread first touches the pages of its chunk.
+     */
+    public enum AllocMode { ZERO, UNINIT, FIRSTTOUCH }
+
+    /** Initialization of the declared vectors */
+    private AllocMode allocMode = AllocMode.ZERO;
+
+    /** Schedules of the worksharing loops */
+    public enum ScheduleKind { STATIC, DYNAMIC, GUIDED, AUTO, RUNTIME }
+
+    /** Schedule of the parallel_for without schedule clause (null for the OpenMP default) */
+    private String defaultSchedule = null;
+
+    /** Name of the function being generated (main is MAIN) */
+    private String currentFunction = null;
+
+    /** Local variables of the current function passed by reference to other functions */
+    private HashSet<String> escapingVars = new HashSet<String>();
+
+    /** Says if the function being generated spawns tasks */
+    private boolean hasSpawns = false;
+
+    /** Says if the program uses load, store or readall */
+    private boolean usesBulkIO = false;
+
+    /** Default places of the threads of the generated program (null for the default of OpenMP) */
+    private String places = null;
+
+    /** Says if the program calls wtime */
+    private boolean usesWtime = false;
+
+    /** Says if the program has bind clauses */
+    private boolean usesBind = false;
+
+    /** Says if the code executed in parallel writes, so that the output of the threads is buffered */
+    private boolean bufferedOutput = false;
+
+    /** Says if the parallel constructs are instrumented to report their times */
+    private boolean profile = false;
+
+    /** File where the generated program writes the timeline of the parallel constructs (null for none) */
+    private String timelineFile = null;
+
+    /** Constructs measured by the profile and the timeline, indexed by kind, function and line */
+    private LinkedHashMap<String,Integer> profileSites = new LinkedHashMap<String,Integer>();
+
+    /** Depth of the spawned tasks from which no more tasks are created (0 for no limit) */
+    private int taskDepth = 0;
+
+    /** Minimum number of iterations of the tasks of a taskloop (0 for the OpenMP default) */
+    private int grainSize = 0;
+
+    /** Pointers used to access the vectors aligned in a simd loop */
+    private HashMap<String,String> vectorViews = new HashMap<String,String>();
+
+    /** Locks protecting at least one update that cannot be made atomic */
+    private HashSet<String> lockedTargets = new HashSet<String>();
+
+    /** Variables holding the values of the index expressions reduced in the loops */
+    private HashMap<AslTree,String> indexOffsets = new HashMap<AslTree,String>();
+
+    /** Number of offsets of the current function, used to name them */
+    private int numOffsets = 0;
+
+    /** Loops of a collapsed nest, whose header can't be modified */
+    private HashSet<AslTree> canonicalLoops = new HashSet<AslTree>();
+
+    /** Vector parameters written by each function (by name of the function) */
+    private HashMap<String,boolean[]> writtenParams = new HashMap<String,boolean[]>();
+
+    /** Functions that may receive the same vector in two parameters */
+    private HashSet<String> aliasedFunctions = new HashSet<String>();
+
+    /** Vector parameters of the current function passed as constant references */
+    private HashSet<String> constVectors = new HashSet<String>();
+
+    /** Vectors accessed through the pointers declared for an aligned clause */
+    private ArrayList<String> alignedViews = new ArrayList<String>();
+
+    /** Says if the loops of the serial code are parallelized when possible */
+    private boolean autoParallel = false;
+
+    /** Says if the code is generated inside an automatically parallelized loop */
+    private boolean inAutoParallelLoop = false;
+
+    /** Vectors whose elements written in the current parallel_for are different in each iteration */
+    private HashSet<String> disjointVectors = new HashSet<String>();
+
+    /** Says if the decisions of the analyses are reported */
+    private boolean verbose = false;
+
+    /** Barriers of the current parallel code that synchronize no dependence */
+    private HashSet<AslTree> redundantBarriers = new HashSet<AslTree>();
+
+    /** Worksharing loops of the current parallel code that don't need their final barrier */
+    private HashSet<AslTree> nowaitLoops = new HashSet<AslTree>();
+
+    /**
+     * Shared variables read and written by a piece of parallel code. The
+     * input/output is represented by the variable _io. Unknown code (the
+     * caller of a function, running tasks) conflicts with everything.
+     */
+    private static class SharedAccesses {
+        HashSet<String> reads = new HashSet<String>();
+        HashSet<String> writes = new HashSet<String>();
+        boolean unknown = false;
+
+        boolean isEmpty() {
+            return !unknown && reads.isEmpty() && writes.isEmpty();
+        }
+
+        void addAll(SharedAccesses other) {
+            reads.addAll(other.reads);
+            writes.addAll(other.writes);
+            unknown |= other.unknown;
+        }
+
+        /** Checks whether the code must be separated from the code that follows it. */
+        boolean conflictsWith(SharedAccesses next) {
+            if (isEmpty() || next.isEmpty()) return false;
+            if (unknown || next.unknown) return true;
+            for (String name : writes) {
+                if (next.reads.contains(name) || next.writes.contains(name)) return true;
+            }
+            for (String name : reads) {
+                if (next.writes.contains(name)) return true;
+            }
+            return false;
+        }
+    }
     
     /**
      * Constructor of the interpreter. It prepares the main
@@ -88,8 +240,13 @@ public class Interp {
      */
     public Interp(AslTree T, String tracefile) {
         assert T != null;
+        usesBulkIO = containsBulkIO(T);
+        usesWtime = containsCall(T, "wtime");
+        usesBind = containsNode(T, AslLexer.BIND);
         MapFunctions(T);  // Creates the table to map function names into AST nodes
         PreProcessAST(T); // Some internal pre-processing ot the AST
+        collectLockedTargets(); // Updates that must be protected by a lock
+        analyzeVectorParams(); // Vector parameters read only or without aliases
         Stack = new Stack(); // Creates the memory of the virtual machine
         // Initializes the standard input of the program
         stdin = new Scanner (new BufferedReader(new InputStreamReader(System.in)));
@@ -108,16 +265,42 @@ public class Interp {
     public void Run() throws ParallelException {
         //Basic initializations
         StringBuilder genCode = new StringBuilder();
+        HashSet<String> reachable = findReachableVersions();
+        bufferedOutput = writesInParallel(reachable);
+        // without places the OpenMP runtime ignores the bind clauses
+        if (places == null && usesBind)
+            System.err.println ("Note: The bind clauses need the places of the threads, given with -places or OMP_PLACES");
         genCode.append("#include <iostream>" + "\n");
         genCode.append("#include <vector>" + "\n");
+        genCode.append("#include <algorithm>" + "\n");
+        genCode.append("#include <cstdlib>" + "\n");
+        genCode.append("#include <new>" + "\n");
+        genCode.append("#include <utility>" + "\n");
         genCode.append("#include <omp.h>" + "\n");
+        if (usesBulkIO || bufferedOutput) {
+            genCode.append("#include <string>" + "\n");
+            genCode.append("#include <sstream>" + "\n");
+        }
+        if (usesBulkIO || isInstrumented()) genCode.append("#include <cstdio>" + "\n");
+        if (usesBulkIO) {
+            genCode.append("#include <cctype>" + "\n");
+            genCode.append("#include <fcntl.h>" + "\n");
+            genCode.append("#include <sys/stat.h>" + "\n");
+        }
+        if (usesBulkIO || places != null) genCode.append("#include <unistd.h>" + "\n");
         genCode.append("using namespace std;" + "\n\n");
+        generateGlobals(genCode);
 
         Iterator<String> funcIter = listFunc.iterator();
      
         while (funcIter.hasNext()) {
             counterSpace = 0;
             String funcNameStr = funcIter.next();
+            if (!reachable.contains(funcNameStr)) {
+                System.err.println ("Note: The version " + funcNameStr + " is never called, it is not generated\n");
+                funcIter.remove();
+                continue;
+            }
             BooleanContainer hasReferenceParams = new BooleanContainer();
             hasReferenceParams.data = new Boolean(false);
             StringBuilder generatedFunctionCode = new StringBuilder();
@@ -183,9 +366,466 @@ public class Interp {
         counterSpace = 0;
         generateFunction("main", hasReferenceParams, generatedFunctionCode);
         genCode.append(generatedFunctionCode);
+        if (isInstrumented()) generateProfileReport(genCode);
         System.out.println(genCode); 
     }
     
+    /**
+     * Finds the versions of the functions reachable from main. The
+     * version called at each call depends on its context: the serial
+     * one outside the parallel regions, f$ inside them and f_ inside
+     * a not_sync of a parallel region.
+     */
+    private HashSet<String> findReachableVersions() {
+        HashSet<String> reachable = new HashSet<String>();
+        ArrayList<String> pending = new ArrayList<String>();
+        reachable.add("main");
+        pending.add("main");
+        while (!pending.isEmpty()) {
+            String version = pending.remove(pending.size() - 1);
+            boolean notSync = version.endsWith("_");
+            boolean parallel = notSync || version.endsWith("$");
+            collectCalledVersions(FuncName2Tree.get(version).getChild(2), parallel, notSync, reachable, pending);
+        }
+        return reachable;
+    }
+
+    private void collectCalledVersions(AslTree t, boolean parallel, boolean notSync,
+                                       HashSet<String> reachable, ArrayList<String> pending) {
+        switch (t.getType()) {
+            case AslLexer.BEGIN_PARALLEL:
+                parallel = true;
+                break;
+            case AslLexer.NUM_THREADS:
+                // evaluated before the region
+                parallel = notSync = false;
+                break;
+            case AslLexer.NOT_SYNC:
+                notSync = parallel;
+                break;
+            case AslLexer.FUNCALL:
+            {
+                String fname = t.getChild(0).getText();
+                if (hashBuiltinFunc.containsKey(fname)) break;
+                String version = fname + (!parallel ? "" : notSync ? "_" : "$");
+                if (FuncName2Tree.containsKey(version) && reachable.add(version)) pending.add(version);
+                break;
+            }
+            default: break;
+        }
+        int n = t.getChildCount();
+        for (int i = 0; i < n; ++i) collectCalledVersions(t.getChild(i), parallel, notSync, reachable, pending);
+    }
+
+    /** Defines the locks used by the critical sections of the generated code. */
+    public void setLockMode(LockMode mode, int stripes) {
+        lockMode = mode;
+        lockStripes = stripes;
+    }
+
+    /** Defines how the elements of the declared vectors are initialized. */
+    public void setAllocMode(AllocMode mode) {
+        allocMode = mode;
+    }
+
+    /**
+     * Defines the schedule of the parallel_for loops without a schedule
+     * clause. A chunk size of 0 means no chunk size.
+     */
+    public void setDefaultSchedule(ScheduleKind kind, int chunk) {
+        defaultSchedule = kind.name().toLowerCase();
+        if (chunk > 0) defaultSchedule += ", " + chunk;
+    }
+
+    /**
+     * Defines the cutoffs of the tasks: the depth of the spawned tasks from
+     * which their descendants are executed immediately, and the minimum
+     * number of iterations of the tasks of a taskloop (0 for no cutoff).
+     */
+    public void setTaskCutoff(int depth, int grain) {
+        taskDepth = depth;
+        grainSize = grain;
+    }
+
+    /** Reports on stderr the decisions of the analyses. */
+    public void setVerbose(boolean value) {
+        verbose = value;
+    }
+
+    /**
+     * Instruments the parallel regions, the parallel_for loops, the
+     * barriers and the critical sections, whose times are reported at
+     * the end of the execution of the generated program.
+     */
+    public void setProfile(boolean value) {
+        profile = value;
+    }
+
+    /**
+     * Makes the generated program record when each thread enters and
+     * leaves the instrumented constructs (see setProfile), and write the
+     * events at exit to a file in the Chrome trace event format.
+     */
+    public void setTimeline(String file) {
+        timelineFile = file;
+    }
+
+    /**
+     * Defines the places where the threads of the generated program are
+     * bound (threads, cores, sockets... or an explicit list), unless
+     * OMP_PLACES is defined when it is executed.
+     */
+    public void setPlaces(String value) {
+        places = value;
+    }
+
+    /** Says if the parallel constructs are instrumented, for the profile or the timeline. */
+    private boolean isInstrumented() {
+        return profile || timelineFile != null;
+    }
+
+    /**
+     * Makes the for loops of the serial code parallel loops when their
+     * iterations are independent.
+     */
+    public void setAutoParallel(boolean value) {
+        autoParallel = value;
+    }
+
+    /** Returns the C++ type of a vector with elements of the given type. */
+    private static String vectorType(String elemType) {
+        return "_vector<" + elemType + ">";
+    }
+
+    /** Generates the global declarations needed by the generated code. */
+    private void generateGlobals(StringBuilder genCode) {
+        // Vectors are allocated aligned to cache lines and freed when they go
+        // out of scope. Constructing an element without value leaves it
+        // uninitialized, so that the vectors can be filled by their users.
+        genCode.append("template <class T> struct _allocator {" + "\n");
+        genCode.append("  typedef T value_type;" + "\n");
+        genCode.append("  _allocator() {}" + "\n");
+        genCode.append("  template <class U> _allocator(const _allocator<U> &) {}" + "\n");
+        genCode.append("  T *allocate(size_t n) {" + "\n");
+        genCode.append("    void *p;" + "\n");
+        genCode.append("    if (posix_memalign(&p, 64, n * sizeof(T)) != 0) throw bad_alloc();" + "\n");
+        genCode.append("    return (T *) p;" + "\n");
+        genCode.append("  }" + "\n");
+        genCode.append("  void deallocate(T *p, size_t) { free(p); }" + "\n");
+        genCode.append("  template <class U> void construct(U *p) { ::new ((void *) p) U; }" + "\n");
+        genCode.append("  template <class U, class... A> void construct(U *p, A&&... a) { ::new ((void *) p) U(std::forward<A>(a)...); }" + "\n");
+        genCode.append("};" + "\n");
+        genCode.append("template <class T, class U> bool operator==(const _allocator<T> &, const _allocator<U> &) { return true; }" + "\n");
+        genCode.append("template <class T, class U> bool operator!=(const _allocator<T> &, const _allocator<U> &) { return false; }" + "\n");
+        genCode.append("template <class T> using _vector = vector<T, _allocator<T> >;" + "\n\n");
+
+        if (usesBulkIO) generateBulkIOHelpers(genCode);
+        if (usesWtime) {
+            // the origin is set before main starts
+            genCode.append("const double _wtime_origin = omp_get_wtime();" + "\n");
+            genCode.append("int _wtime() { return (int) ((omp_get_wtime() - _wtime_origin) * 1000); }" + "\n\n");
+        }
+        if (isInstrumented()) generateProfileHelpers(genCode);
+        if (bufferedOutput) {
+            // output of the thread in a parallel region, and its flush
+            genCode.append("ostringstream *_out = NULL;" + "\n");
+            genCode.append("#pragma omp threadprivate(_out)" + "\n");
+            genCode.append("void _flush() {" + "\n");
+            genCode.append("  if (_out->tellp() == 0) return;" + "\n");
+            genCode.append("  string s = _out->str();" + "\n");
+            genCode.append("  _out->str(\"\");" + "\n");
+            genCode.append("  #pragma omp critical(_output)" + "\n");
+            genCode.append("  cout << s;" + "\n");
+            genCode.append("}" + "\n");
+            // a barrier that writes the output of the threads in their order
+            genCode.append("void _flush_ordered() {" + "\n");
+            genCode.append("  #pragma omp for ordered schedule(static, 1)" + "\n");
+            genCode.append("  for (int t = 0; t < omp_get_num_threads(); ++t) {" + "\n");
+            genCode.append("    #pragma omp ordered" + "\n");
+            genCode.append("    _flush();" + "\n");
+            genCode.append("  }" + "\n");
+            genCode.append("}" + "\n\n");
+        }
+        if (lockMode == LockMode.STRIPED) {
+            genCode.append("omp_lock_t _locks[" + lockStripes + "];" + "\n");
+            genCode.append("void _destroy_locks() {" + "\n");
+            genCode.append("  for (int _l = 0; _l < " + lockStripes + "; ++_l) omp_destroy_lock(&_locks[_l]);" + "\n");
+            genCode.append("}" + "\n\n");
+        }
+        if (taskDepth > 0) {
+            // depth of the task executed by each thread
+            genCode.append("int _task_depth = 0;" + "\n");
+            genCode.append("#pragma omp threadprivate(_task_depth)" + "\n\n");
+        }
+    }
+
+    /**
+     * Generates the functions used by load, store and readall. load reads
+     * the file with a pread per thread, so that the pages of each part of
+     * the vector are touched by the thread that processes it in a static
+     * loop. readall takes the rest of the input in blocks and parses it in
+     * parallel: each thread counts the numbers that start in its chunk, and
+     * after a prefix sum it converts them into their positions. The input
+     * that follows the n-th number remains available for read.
+     */
+    private void generateBulkIOHelpers(StringBuilder genCode) {
+        genCode.append("template <class T> void _load(_vector<T> &v, const char *path) {" + "\n");
+        genCode.append("  size_t bytes = v.size() * sizeof(T);" + "\n");
+        genCode.append("  int fd = open(path, O_RDONLY);" + "\n");
+        genCode.append("  struct stat st;" + "\n");
+        genCode.append("  bool ok = fd >= 0 && fstat(fd, &st) == 0 && (size_t) st.st_size >= bytes;" + "\n");
+        genCode.append("  #pragma omp parallel if (ok) reduction(&&:ok)" + "\n");
+        genCode.append("  {" + "\n");
+        genCode.append("    int nt = omp_get_num_threads(), id = omp_get_thread_num();" + "\n");
+        genCode.append("    size_t lo = v.size() * id / nt * sizeof(T), hi = v.size() * (id + 1) / nt * sizeof(T);" + "\n");
+        genCode.append("    while (ok && lo < hi) {" + "\n");
+        genCode.append("      ssize_t r = pread(fd, (char *) v.data() + lo, hi - lo, lo);" + "\n");
+        genCode.append("      if (r <= 0) ok = false;" + "\n");
+        genCode.append("      else lo += r;" + "\n");
+        genCode.append("    }" + "\n");
+        genCode.append("  }" + "\n");
+        genCode.append("  if (fd >= 0) close(fd);" + "\n");
+        genCode.append("  if (!ok) {" + "\n");
+        genCode.append("    cerr << \"load: can't read \" << v.size() << \" elements from \" << path << endl;" + "\n");
+        genCode.append("    exit(1);" + "\n");
+        genCode.append("  }" + "\n");
+        genCode.append("}" + "\n");
+        genCode.append("template <class T> void _store(const _vector<T> &v, const char *path) {" + "\n");
+        genCode.append("  FILE *f = fopen(path, \"wb\");" + "\n");
+        genCode.append("  if (f == NULL || fwrite(v.data(), sizeof(T), v.size(), f) != v.size() || fclose(f) != 0) {" + "\n");
+        genCode.append("    cerr << \"store: can't write \" << v.size() << \" elements to \" << path << endl;" + "\n");
+        genCode.append("    exit(1);" + "\n");
+        genCode.append("  }" + "\n");
+        genCode.append("}" + "\n");
+        genCode.append("stringbuf _input_rest;" + "\n");
+        genCode.append("template <class T> void _readall(_vector<T> &v, long long n) {" + "\n");
+        genCode.append("  if (n < 0 || (size_t) n > v.size()) {" + "\n");
+        genCode.append("    cerr << \"readall: \" << n << \" elements don't fit in a vector of \" << v.size() << endl;" + "\n");
+        genCode.append("    exit(1);" + "\n");
+        genCode.append("  }" + "\n");
+        genCode.append("  string in;" + "\n");
+        genCode.append("  static char block[1 << 16];" + "\n");
+        genCode.append("  for (streamsize k; (k = cin.rdbuf()->sgetn(block, sizeof block)) > 0; ) in.append(block, k);" + "\n");
+        genCode.append("  const char *s = in.data();" + "\n");
+        // the rest of the input follows the n-th number (all of it for n = 0)
+        genCode.append("  size_t size = in.size(), end = n == 0 ? 0 : size;" + "\n");
+        genCode.append("  vector<size_t> first;" + "\n");
+        genCode.append("  #pragma omp parallel" + "\n");
+        genCode.append("  {" + "\n");
+        genCode.append("    int nt = omp_get_num_threads(), id = omp_get_thread_num();" + "\n");
+        genCode.append("    size_t lo = size * id / nt, hi = size * (id + 1) / nt, count = 0;" + "\n");
+        genCode.append("    #pragma omp single" + "\n");
+        genCode.append("    first.assign(nt + 1, 0);" + "\n");
+        genCode.append("    for (size_t p = lo; p < hi; ++p) count += !isspace((unsigned char) s[p]) && (p == 0 || isspace((unsigned char) s[p - 1]));" + "\n");
+        genCode.append("    first[id + 1] = count;" + "\n");
+        genCode.append("    #pragma omp barrier" + "\n");
+        genCode.append("    #pragma omp single" + "\n");
+        genCode.append("    for (int i = 0; i < nt; ++i) first[i + 1] += first[i];" + "\n");
+        genCode.append("    size_t i = first[id];" + "\n");
+        genCode.append("    for (size_t p = lo; p < hi && i < (size_t) n; ++p) {" + "\n");
+        genCode.append("      if (isspace((unsigned char) s[p]) || (p > 0 && !isspace((unsigned char) s[p - 1]))) continue;" + "\n");
+        genCode.append("      bool negative = s[p] == '-';" + "\n");
+        genCode.append("      if (negative || s[p] == '+') ++p;" + "\n");
+        genCode.append("      long long x = 0;" + "\n");
+        genCode.append("      for (; p < size && isdigit((unsigned char) s[p]); ++p) x = x * 10 + (s[p] - '0');" + "\n");
+        genCode.append("      v[i] = negative ? -x : x;" + "\n");
+        genCode.append("      if (++i == (size_t) n) end = p;" + "\n");
+        genCode.append("    }" + "\n");
+        genCode.append("  }" + "\n");
+        genCode.append("  if (first.back() < (size_t) n) {" + "\n");
+        genCode.append("    cerr << \"readall: the input has \" << first.back() << \" elements, \" << n << \" expected\" << endl;" + "\n");
+        genCode.append("    exit(1);" + "\n");
+        genCode.append("  }" + "\n");
+        genCode.append("  _input_rest.str(in.substr(end));" + "\n");
+        genCode.append("  cin.rdbuf(&_input_rest);" + "\n");
+        genCode.append("  cin.clear();" + "\n");
+        genCode.append("}" + "\n\n");
+    }
+
+    /**
+     * Generates the counters of the profile and the functions that update
+     * them. Each thread accumulates the time it spends in a construct, the
+     * time it waits in the final barrier of a loop and the iterations it
+     * executes, in its own cache line. The table of the constructs is
+     * defined at the end of the program (see generateProfileReport).
+     * For the timeline, the same functions record each interval in a ring
+     * buffer of the thread, allocated by the thread in its first event,
+     * so that no lock is taken.
+     */
+    private void generateProfileHelpers(StringBuilder genCode) {
+        boolean timeline = timelineFile != null;
+        genCode.append("const int _PROF_THREADS = 256;" + "\n");
+        genCode.append("struct alignas(64) _prof_thread { double time, wait; long long count, iters; };" + "\n");
+        genCode.append("struct _prof_site { const char *kind, *function; int line; _prof_thread thread[_PROF_THREADS]; };" + "\n");
+        genCode.append("extern _prof_site _prof[];" + "\n");
+        if (profile) genCode.append("void _prof_report();" + "\n");
+        genCode.append("inline _prof_thread &_prof_at(int site) {" + "\n");
+        genCode.append("  int id = omp_get_thread_num();" + "\n");
+        genCode.append("  return _prof[site].thread[id < _PROF_THREADS ? id : _PROF_THREADS - 1];" + "\n");
+        genCode.append("}" + "\n");
+        if (timeline) {
+            genCode.append("const long long _TL_EVENTS = 1 << 16;" + "\n");
+            genCode.append("struct _tl_event { int site, wait; double begin, end; };" + "\n");
+            genCode.append("struct alignas(64) _tl_thread { _tl_event *events; long long next; };" + "\n");
+            genCode.append("_tl_thread _tl[_PROF_THREADS];" + "\n");
+            genCode.append("double _tl_origin;" + "\n");
+            genCode.append("void _tl_write();" + "\n");
+            genCode.append("inline void _tl_record(int site, int wait, double begin, double end) {" + "\n");
+            genCode.append("  int id = omp_get_thread_num();" + "\n");
+            genCode.append("  _tl_thread &t = _tl[id < _PROF_THREADS ? id : _PROF_THREADS - 1];" + "\n");
+            genCode.append("  if (t.events == NULL) t.events = (_tl_event *) malloc(_TL_EVENTS * sizeof(_tl_event));" + "\n");
+            genCode.append("  if (t.events != NULL) t.events[t.next++ % _TL_EVENTS] = {site, wait, begin, end};" + "\n");
+            genCode.append("}" + "\n");
+        }
+        genCode.append("inline void _prof_end(int site, double start) {" + "\n");
+        genCode.append("  double end = omp_get_wtime();" + "\n");
+        genCode.append("  _prof_thread &p = _prof_at(site);" + "\n");
+        genCode.append("  p.time += end - start;" + "\n");
+        genCode.append("  ++p.count;" + "\n");
+        if (timeline) genCode.append("  _tl_record(site, 0, start, end);" + "\n");
+        genCode.append("}" + "\n");
+        genCode.append("inline void _prof_loop(int site, double start, long long iters) {" + "\n");
+        genCode.append("  _prof_end(site, start);" + "\n");
+        genCode.append("  _prof_at(site).iters += iters;" + "\n");
+        genCode.append("}" + "\n");
+        genCode.append("inline void _prof_wait(int site, double start) {" + "\n");
+        genCode.append("  double end = omp_get_wtime();" + "\n");
+        genCode.append("  _prof_at(site).wait += end - start;" + "\n");
+        if (timeline) genCode.append("  _tl_record(site, 1, start, end);" + "\n");
+        genCode.append("}" + "\n\n");
+    }
+
+    /**
+     * Generates the table of the instrumented constructs, the function that
+     * reports their statistics on stderr at exit, sorted by line, and the
+     * function that writes the timeline. The time of a construct is the sum
+     * of the times of the threads, and its imbalance is the maximum time of
+     * a thread divided by the mean.
+     */
+    private void generateProfileReport(StringBuilder genCode) {
+        genCode.append("\n" + "_prof_site _prof[] = {");
+        boolean first = true;
+        for (String key : profileSites.keySet()) {
+            String[] site = key.split(":");
+            genCode.append((first ? "" : ",") + "\n  {\"" + site[0] + "\", \"" + site[1] + "\", " + site[2] + "}");
+            first = false;
+        }
+        if (first) genCode.append("\n  {\"none\", \"none\", 0}");
+        genCode.append("\n" + "};" + "\n\n");
+        if (profile) generateProfileTable(genCode);
+        if (timelineFile != null) generateTimelineWriter(genCode);
+    }
+
+    /** Generates the function that reports the statistics of the profile. */
+    private void generateProfileTable(StringBuilder genCode) {
+        genCode.append("void _prof_report() {" + "\n");
+        genCode.append("  int n = sizeof(_prof) / sizeof(_prof[0]);" + "\n");
+        genCode.append("  vector<int> order(n);" + "\n");
+        genCode.append("  for (int s = 0; s < n; ++s) order[s] = s;" + "\n");
+        genCode.append("  stable_sort(order.begin(), order.end(), [](int a, int b) { return _prof[a].line < _prof[b].line; });" + "\n");
+        genCode.append("  fprintf(stderr, \"%6s %-14s %-14s %8s %8s %12s %12s %12s %9s %12s %12s\\n\", \"line\", \"construct\", \"function\", \"count\", \"threads\"," + "\n");
+        genCode.append("          \"total(s)\", \"min(s)\", \"max(s)\", \"imbalance\", \"wait(s)\", \"iterations\");" + "\n");
+        genCode.append("  for (int s : order) {" + "\n");
+        genCode.append("    int threads = 0;" + "\n");
+        genCode.append("    long long count = 0, minIters = -1, maxIters = 0;" + "\n");
+        genCode.append("    double total = 0, wait = 0, minTime = 0, maxTime = 0;" + "\n");
+        genCode.append("    for (int t = 0; t < _PROF_THREADS; ++t) {" + "\n");
+        genCode.append("      const _prof_thread &p = _prof[s].thread[t];" + "\n");
+        genCode.append("      if (p.count == 0) continue;" + "\n");
+        genCode.append("      minTime = threads == 0 ? p.time : min(minTime, p.time);" + "\n");
+        genCode.append("      maxTime = max(maxTime, p.time);" + "\n");
+        genCode.append("      minIters = minIters < 0 ? p.iters : min(minIters, p.iters);" + "\n");
+        genCode.append("      maxIters = max(maxIters, p.iters);" + "\n");
+        genCode.append("      count = max(count, p.count);" + "\n");
+        genCode.append("      total += p.time;" + "\n");
+        genCode.append("      wait += p.wait;" + "\n");
+        genCode.append("      ++threads;" + "\n");
+        genCode.append("    }" + "\n");
+        genCode.append("    if (threads == 0) continue;" + "\n");
+        genCode.append("    double imbalance = total > 0 ? maxTime * threads / total : 1;" + "\n");
+        genCode.append("    fprintf(stderr, \"%6d %-14s %-14s %8lld %8d %12.6f %12.6f %12.6f %9.2f %12.6f \", _prof[s].line, _prof[s].kind, _prof[s].function," + "\n");
+        genCode.append("            count, threads, total, minTime, maxTime, imbalance, wait);" + "\n");
+        genCode.append("    char iters[48] = \"-\";" + "\n");
+        genCode.append("    if (maxIters > 0) snprintf(iters, sizeof iters, \"%lld-%lld\", minIters, maxIters);" + "\n");
+        genCode.append("    fprintf(stderr, \"%12s\\n\", iters);" + "\n");
+        genCode.append("  }" + "\n");
+        genCode.append("}" + "\n");
+    }
+
+    /**
+     * Generates the function that writes the events of the timeline as
+     * complete events ("ph": "X") of the Chrome trace event format, with
+     * the thread as tid and the times in microseconds since the start of
+     * main. The waits in the final barrier of the loops are separate events.
+     */
+    private void generateTimelineWriter(StringBuilder genCode) {
+        String path = "\"" + timelineFile.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+        genCode.append("void _tl_write() {" + "\n");
+        genCode.append("  FILE *f = fopen(" + path + ", \"w\");" + "\n");
+        genCode.append("  if (f == NULL) {" + "\n");
+        genCode.append("    fprintf(stderr, \"timeline: can't write %s\\n\", " + path + ");" + "\n");
+        genCode.append("    return;" + "\n");
+        genCode.append("  }" + "\n");
+        genCode.append("  fprintf(f, \"{\\\"traceEvents\\\": [\");" + "\n");
+        genCode.append("  const char *separator = \"\\n\";" + "\n");
+        genCode.append("  for (int t = 0; t < _PROF_THREADS; ++t) {" + "\n");
+        genCode.append("    const _tl_thread &thread = _tl[t];" + "\n");
+        genCode.append("    if (thread.events == NULL) continue;" + "\n");
+        genCode.append("    long long first = thread.next > _TL_EVENTS ? thread.next - _TL_EVENTS : 0;" + "\n");
+        genCode.append("    if (first > 0) fprintf(stderr, \"timeline: the first %lld events of thread %d are lost\\n\", first, t);" + "\n");
+        genCode.append("    for (long long e = first; e < thread.next; ++e) {" + "\n");
+        genCode.append("      const _tl_event &event = thread.events[e % _TL_EVENTS];" + "\n");
+        genCode.append("      const _prof_site &site = _prof[event.site];" + "\n");
+        genCode.append("      fprintf(f, \"%s{\\\"name\\\": \\\"%s%s %s:%d\\\", \\\"cat\\\": \\\"%s\\\", \\\"ph\\\": \\\"X\\\", \\\"pid\\\": 0, \\\"tid\\\": %d, \"" + "\n");
+        genCode.append("              \"\\\"ts\\\": %.3f, \\\"dur\\\": %.3f}\", separator, site.kind, event.wait ? \" wait\" : \"\", site.function, site.line," + "\n");
+        genCode.append("              site.kind, t, (event.begin - _tl_origin) * 1e6, (event.end - event.begin) * 1e6);" + "\n");
+        genCode.append("      separator = \",\\n\";" + "\n");
+        genCode.append("    }" + "\n");
+        genCode.append("  }" + "\n");
+        genCode.append("  fprintf(f, \"\\n]}\\n\");" + "\n");
+        genCode.append("  fclose(f);" + "\n");
+        genCode.append("}" + "\n");
+    }
+
+    /** Returns the index of a construct in the table of the profile. */
+    private int getProfileSite(String kind, AslTree t) {
+        String function = currentFunction == null || currentFunction.equals("MAIN") ? "main" : currentFunction;
+        String key = kind + ":" + function + ":" + t.getLine();
+        Integer site = profileSites.get(key);
+        if (site == null) {
+            site = profileSites.size();
+            profileSites.put(key, site);
+        }
+        return site;
+    }
+
+    /** Generates the initializations done at the beginning of main. */
+    private void generateMainPrologue(StringBuilder genCode) {
+        if (places != null) {
+            // the OpenMP runtime reads the environment when the program is
+            // loaded, so the program is executed again with the places
+            // (main has no arguments and nothing has been read yet)
+            genCode.append(xTimesChar(counterSpace) + "if (getenv(\"OMP_PLACES\") == NULL) {" + "\n");
+            genCode.append(xTimesChar(counterSpace) + "  setenv(\"OMP_PLACES\", \"" + places + "\", 1);" + "\n");
+            genCode.append(xTimesChar(counterSpace) + "  if (getenv(\"OMP_PROC_BIND\") == NULL) setenv(\"OMP_PROC_BIND\", \"true\", 1);" + "\n");
+            genCode.append(xTimesChar(counterSpace) + "  execl(\"/proc/self/exe\", \"/proc/self/exe\", (char *) NULL);" + "\n");
+            genCode.append(xTimesChar(counterSpace) + "}" + "\n");
+        }
+        // cout is buffered by the C++ library, not by stdio
+        genCode.append(xTimesChar(counterSpace) + "ios::sync_with_stdio(false);" + "\n");
+        if (profile) genCode.append(xTimesChar(counterSpace) + "atexit(_prof_report);" + "\n");
+        if (timelineFile != null) {
+            genCode.append(xTimesChar(counterSpace) + "_tl_origin = omp_get_wtime();" + "\n");
+            genCode.append(xTimesChar(counterSpace) + "atexit(_tl_write);" + "\n");
+        }
+        if (lockMode == LockMode.STRIPED) {
+            genCode.append(xTimesChar(counterSpace) + "for (int _l = 0; _l < " + lockStripes + "; ++_l) ");
+            genCode.append("omp_init_lock(&_locks[_l]);" + "\n");
+            // also when main returns in the middle
+            genCode.append(xTimesChar(counterSpace) + "atexit(_destroy_locks);" + "\n");
+        }
+    }
+
     /** Returns the contents of the stack trace */
     public String getStackTrace() {
         return Stack.getStackTrace(lineNumber());
@@ -201,41 +841,47 @@ public class Interp {
         FuncName2Tree.put(fname + "_", f);//the parallel version points the same node
     }
 
-    //for the moment it supports only calls with 0 parameters
-    private AslTree getFuncTree(String returnType, String fname) {
+    /** Builds the tree of a builtin function with scalar parameters passed by value. */
+    private AslTree getFuncTree(String returnType, String fname, String... paramTypes) {
         Token functionToken = new CommonToken(AslLexer.ID, fname);
         AslTree returnTree = new AslTree(functionToken);
         Token paramsToken = new CommonToken(AslLexer.PARAMS);
         AslTree paramsTree = new AslTree(paramsToken);
-        
-        Token returnTypeToken; 
-        if (returnType.equals("int"))
-            returnTypeToken = new CommonToken(AslLexer.INT, returnType);
-        else 
-            returnTypeToken = new CommonToken(AslLexer.BOOL, returnType);
+        for (int i = 0; i < paramTypes.length; ++i) {
+            AslTree paramTree = new AslTree(new CommonToken(getTypeToken(paramTypes[i]), paramTypes[i]));
+            paramTree.addChild(new AslTree(new CommonToken(AslLexer.PVALUE, "_p" + i)));
+            paramsTree.addChild(paramTree);
+        }
 
-        AslTree typeTree = new AslTree(returnTypeToken);
+        AslTree typeTree = new AslTree(new CommonToken(getTypeToken(returnType), returnType));
         returnTree.addChild(typeTree);
         returnTree.addChild(paramsTree);
         
         return returnTree;
     }
 
+    private static int getTypeToken(String type) {
+        if (type.equals("int")) return AslLexer.INT;
+        if (type.equals("bool")) return AslLexer.BOOL;
+        return AslLexer.ID;
+    }
+
+    /** Maps a function of tiny-parallel to a function of the OpenMP runtime (or a helper of the generated code). */
+    private void mapBuiltinFunction(String tinyParFuncName, String builtinFuncName, String returnType, String... paramTypes) {
+        hashBuiltinFunc.put(tinyParFuncName, builtinFuncName);
+        FuncName2Tree.put(builtinFuncName, getFuncTree(returnType, builtinFuncName, paramTypes));
+    }
+
     private void mapBuiltinFunctions() {
         /*PUT HERE ALL BUILTIN functions, the ones supported by openmp.h*/
-        String tinyParFuncName = "getNumThreads";
-        String builtinFuncName = "omp_get_num_threads";
-        String returnType = "int";
-        AslTree funcTree = getFuncTree(returnType, builtinFuncName);
-        hashBuiltinFunc.put(tinyParFuncName, builtinFuncName);
-        FuncName2Tree.put(builtinFuncName, funcTree);
-       
-        tinyParFuncName = "getThreadId";
-        builtinFuncName = "omp_get_thread_num";
-        returnType = "int";
-        funcTree = getFuncTree(returnType, builtinFuncName);
-        hashBuiltinFunc.put(tinyParFuncName, builtinFuncName);
-        FuncName2Tree.put(builtinFuncName, funcTree);
+        mapBuiltinFunction("getNumThreads", "omp_get_num_threads", "int");
+        mapBuiltinFunction("getThreadId", "omp_get_thread_num", "int");
+        mapBuiltinFunction("getNumProcessors", "omp_get_num_procs", "int");
+        mapBuiltinFunction("getMaxThreads", "omp_get_max_threads", "int");
+        mapBuiltinFunction("setNumThreads", "omp_set_num_threads", "void", "int");
+        mapBuiltinFunction("inParallel", "omp_in_parallel", "bool");
+        // milliseconds since the beginning of the program (see generateGlobals)
+        mapBuiltinFunction("wtime", "_wtime", "int");
     }
 
     /**
@@ -343,6 +989,11 @@ public class Interp {
 
         // Track line number. Maybe the previous line should be changed with this one
         setLineNumber(f);
+
+        currentFunction = f.getText();
+        escapingVars = getEscapingVars(f.getChild(2));
+        numOffsets = 0;
+        constVectors.clear();
          
         // Copy the parameters to the current activation record
         for (int i = 0; i < nparam; ++i) {
@@ -354,8 +1005,12 @@ public class Interp {
 
             if (!paramIsVector)
                 genCode.append(param_type + " ");
+            else if (writtenParams.containsKey(funcName) && !writtenParams.get(funcName)[i]) {
+                genCode.append("const " + vectorType(param_type) + " ");
+                constVectors.add(paramNode.getChild(0).getText());
+            }
             else
-                genCode.append("vector<" + param_type + "> ");
+                genCode.append(vectorType(param_type) + " ");
            
             Data passedData = new Data(paramNode.getText());
             //if the passed data is a vector it will always be by reference
@@ -378,14 +1033,30 @@ public class Interp {
             Data toDefine = new Data(paramNode.getText());
             if (paramIsVector) 
                 toDefine.setVector();
+            if (AslLexer.PREF == paramNode.getChild(0).getType() || paramIsVector)
+                toDefine.setReference();
 
             Stack.defineVariable(param_name, toDefine);
         }
 
         genCode.append(") {" + "\n");
         counterSpace += 2;
+        if (funcnameArg.equals("main")) generateMainPrologue(genCode);
+        hasSpawns = containsSpawn(f.getChild(2));
+        if (inParallelRegion) {
+            // the code of the caller before and after the call is unknown
+            SharedAccesses caller = new SharedAccesses();
+            caller.unknown = true;
+            redundantBarriers.clear();
+            nowaitLoops.clear();
+            findRedundantBarriers(f.getChild(2), caller, false);
+        }
         // Execute the instructions
         Data result = generateListInstructions(f.getChild(2), genCode);
+        AslTree body = f.getChild(2);
+        if (hasSpawns && inParallelRegion &&
+            (body.getChildCount() == 0 || body.getChild(body.getChildCount() - 1).getType() != AslLexer.RETURN))
+            genCode.append(xTimesChar(counterSpace) + "#pragma omp taskwait" + "\n");
 
         counterSpace -= 2;
         genCode.append("}" + "\n\n");
@@ -414,13 +1085,18 @@ public class Interp {
         int ninstr = t.getChildCount();
         for (int i = 0; i < ninstr; ++i) {
             String indentation = xTimesChar(counterSpace);
+            // consecutive parallel constructs share a single parallel region
+            int last = inParallelRegion ? i : findFusedRegions(t, i);
+            if (last > i) {
+                genCode.append(indentation);
+                generateFusedRegions(t, i, last, genCode);
+                i = last;
+                continue;
+            }
             if (t.getChild(i).getType() != AslLexer.NOT_SYNC){
                 genCode.append(indentation);
             }      
             generateInstruction (t.getChild(i), genCode);
-            if (t.getChild(i).getType() == AslLexer.ASSIGN){
-            	genCode.append(";" + "\n");
-            }
         }
         return null;
     }
@@ -496,6 +1172,9 @@ public class Interp {
         if (inParallelRegion)
             throw new ParallelException ("Opening parallel region inside another one");
             
+        // the clauses are evaluated before the threads are created
+        String regionClauses = generateRegionClauses(t);
+
         // in the other case, we create the zone
         inParallelRegion = true;
         String parallelZoneHeader = "#pragma omp parallel default(shared)";
@@ -571,31 +1250,26 @@ public class Interp {
             }
             parallelZoneHeader += ")";
         } 
+
+        // accumulations into shared variables become reductions of the region
+        LinkedHashMap<String,String> reductions = findReductions(t, true);
+        parallelZoneHeader += generateReductionClauses(reductions, t);
+        parallelZoneHeader += regionClauses;
         
         genCode.append(parallelZoneHeader + "\n"); 
         genCode.append(xTimesChar(counterSpace) + "{" + "\n");
         counterSpace += 2;
+        generateOutputBuffer(genCode);
+        int site = isInstrumented() ? getProfileSite("region", t) : -1;
+        if (site >= 0) genCode.append(xTimesChar(counterSpace) + "double _prof_t = omp_get_wtime();" + "\n");
+        redundantBarriers.clear();
+        nowaitLoops.clear();
+        findRedundantBarriers(t.getChild(t.getChildCount() - 1), new SharedAccesses(), true);
         
-       //Instructions
-        if (caseFirst){
-            if (t.getChild(1).getType() == AslLexer.PRIVATE_VAR){
-                generateListInstructions(t.getChild(2), genCode);
-            }
-
-            else {
-                generateListInstructions(t.getChild(1), genCode);
-            }
-        }
-        
-        else {
-            if (t.getChild(0).getType() == AslLexer.PRIVATE_VAR){
-                generateListInstructions(t.getChild(1), genCode);
-            }
-            else {
-                generateListInstructions(t.getChild(0), genCode);
-            }    
-                
-        }  
+       //Instructions (the block is the last child, after the lists of variables and the clauses)
+        generateListInstructions(t.getChild(t.getChildCount() - 1), genCode);
+        if (bufferedOutput) genCode.append(xTimesChar(counterSpace) + "_flush_ordered();" + "\n");
+        if (site >= 0) genCode.append(xTimesChar(counterSpace) + "_prof_end(" + site + ", _prof_t);" + "\n");
             
         counterSpace -= 2;
         genCode.append(xTimesChar(counterSpace) +"}" + "\n");
@@ -617,93 +1291,1975 @@ public class Interp {
             } 
             }
         }
+        for (String name : reductions.keySet()) Stack.getVariable(name).setShared(true);
          // you must take care because the variables declared inside the parallel zone must die
         inParallelRegion = false;
     }
 
-    // Function to generate the header of the for and the for parallel (there is the same, that's why this funcion exists)
-    private void generateHeaderFor(AslTree t, StringBuilder genCode) throws ParallelException{
-        
-        genCode.append("for (");
-           	
-        /* header - parte assignation del variant*/
-		
-        String varBoucle = t.getChild(0).getChild(0).getText();
-		
-        Data variant = Stack.getVariable(varBoucle);
-        
-        //case pragma omp critical
-        //we don't want to permit to use a variable with critical in the header of the header of a parallel_for
-		if (variant.isShared() && !inNotSyncRegion && inParallelRegion) 
-		    throw new RuntimeException ("Variant of the header of a parallel_for must be first private / private variable in");
-		
-        if (!variant.isInteger()) throw new RuntimeException ("Variant must be an integer for a boucle for"); 
-		
-        generateInstruction(t.getChild(0), genCode);
-		
-        genCode.append(" ; ");
-		
-		
-        /*header - parte increment*/
-        AslTree forCompa = t.getChild(1);
-		
-        if (forCompa.getType() != AslLexer.LE &&
-            forCompa.getType() != AslLexer.LT &&
-            forCompa.getType() != AslLexer.GE &&
-            forCompa.getType() != AslLexer.GT ) throw new RuntimeException ("Must be comparation for a boucle for"); 
-            
-        generateExpression(forCompa, genCode);
-            	
-        genCode.append(" ; ");
-            	  	
-        AslTree forPlus = t.getChild(2);
-		
-        if (forPlus.getType() != AslLexer.ASSIGN)
-		    throw new RuntimeException ("Must be assignation for a boucle for"); 
-        
-        generateInstruction(forPlus, genCode);
-        
-        genCode.append(") { \n");
-        counterSpace += 2;
-    }
-     
     /**
-     * Executes an instruction. 
-     * Non-null results are only returned by "return" statements.
-     * @param t The AST of the instruction.
-     * @return The data returned by the instruction. The data will be
-     * non-null only if a return statement is executed or a block
-     * of instructions executing a return.
+     * Generates the schedule clause of a parallel_for. The kind must be one
+     * of the OpenMP schedules and the chunk size an integer expression,
+     * not allowed for the auto and runtime schedules.
      */
-    private void generateInstruction (AslTree t, StringBuilder genCode) throws ParallelException {
-
-        assert t != null;
-        
-        setLineNumber(t);
-
-        // A big switch for all type of instructions
-        switch (t.getType()) {
+    private void generateScheduleClause(AslTree t, StringBuilder genCode) {
+        String kind = t.getChild(0).getText();
+        ScheduleKind scheduleKind = null;
+        for (ScheduleKind k : ScheduleKind.values()) {
+            if (k.name().toLowerCase().equals(kind)) scheduleKind = k;
+        }
+        if (scheduleKind == null)
+            throw new RuntimeException ("Unknown schedule " + kind + " (static, dynamic, guided, auto or runtime expected):" + lineNumber());
 
-            case AslLexer.BEGIN_PARALLEL:
-            {
-                generateParallelZone(t, genCode);
-                return;
-            }
-            
-            case AslLexer.REDUCTION:
-            {
-                return;
-            }
+        genCode.append(" schedule(" + kind);
+        if (t.getChildCount() == 2) {
+            if (scheduleKind == ScheduleKind.AUTO || scheduleKind == ScheduleKind.RUNTIME)
+                throw new RuntimeException ("The schedule " + kind + " doesn't accept a chunk size:" + lineNumber());
+            genCode.append(", ");
+            Data chunk = generateExpression(t.getChild(1), genCode);
+            checkInteger(chunk);
+        }
+        genCode.append(")");
+    }
 
-            case AslLexer.BARRIER:
-            {
-                if (inParallelRegion) genCode.append("#pragma omp barrier\n");
-                else 
+    /**
+     * Generates the clauses of a parallel region. The number of threads
+     * is evaluated by the thread that opens the region, so the calls in
+     * it are serial. The bind policy places the threads of the team in
+     * the places of the thread that opens the region (master), in the
+     * places next to it (close) or distributed among all of them (spread).
+     */
+    private String generateRegionClauses(AslTree t) {
+        StringBuilder clauses = new StringBuilder();
+        boolean hasNumThreads = false;
+        boolean hasBind = false;
+        for (int i = 0; i < t.getChildCount(); ++i) {
+            AslTree clauseNode = t.getChild(i);
+            switch (clauseNode.getType()) {
+                case AslLexer.NUM_THREADS:
                 {
-                    genCode.append("\r");
-                    System.err.print ("Note: Using a barrier outside a parallel region is useless:"+ lineNumber() + "\n");
+                    if (hasNumThreads)
+                        throw new RuntimeException ("A parallel region can have only one num_threads clause:" + lineNumber());
+                    hasNumThreads = true;
+                    clauses.append(" num_threads(");
+                    Data threads = generateExpression(clauseNode.getChild(0), clauses);
+                    checkInteger(threads);
+                    clauses.append(")");
+                    break;
                 }
-                return;
+                case AslLexer.BIND:
+                {
+                    if (hasBind)
+                        throw new RuntimeException ("A parallel region can have only one bind clause:" + lineNumber());
+                    hasBind = true;
+                    String policy = clauseNode.getChild(0).getText();
+                    if (!policy.equals("close") && !policy.equals("spread") && !policy.equals("master"))
+                        throw new RuntimeException ("Unknown bind policy " + policy + " (close, spread or master expected):" + lineNumber());
+                    clauses.append(" proc_bind(" + policy + ")");
+                    break;
+                }
+                default: break;
+            }
+        }
+        return clauses.toString();
+    }
+
+    /** Says if a parallel region has clauses that change its team of threads. */
+    private static boolean hasRegionClauses(AslTree t) {
+        for (int i = 0; t.getType() == AslLexer.BEGIN_PARALLEL && i < t.getChildCount(); ++i) {
+            int type = t.getChild(i).getType();
+            if (type == AslLexer.NUM_THREADS || type == AslLexer.BIND) return true;
+        }
+        return false;
+    }
+
+    /** Returns the number of loops of the nest of a parallel_for distributed among the threads. */
+    private static int getDistributedLoops(AslTree t) {
+        int distributed = 1;
+        for (int i = 4; i < t.getChildCount(); ++i) {
+            AslTree clauseNode = t.getChild(i);
+            if (clauseNode.getType() == AslLexer.COLLAPSE) distributed = clauseNode.getChild(0).getIntValue();
+            else if (clauseNode.getType() == AslLexer.TILE) distributed = clauseNode.getChildCount();
+        }
+        return distributed;
+    }
+
+    /**
+     * Checks that a parallel_for can be collapsed with the depth-1 loops
+     * nested inside it: each body must contain only the next for, and the
+     * header of each loop can't use the variables of the enclosing loops,
+     * so that the iteration space is rectangular.
+     */
+    private void checkPerfectNest(AslTree t, int depth) {
+        if (depth < 1)
+            throw new RuntimeException ("The collapse depth must be at least 1:" + t.getLine());
+        ArrayList<String> loopVars = new ArrayList<String>();
+        AslTree loop = t;
+        for (int level = 1; ; ++level) {
+            for (String var : loopVars) {
+                for (int i = 0; i < 3; ++i) {
+                    if (referencesVariable(loop.getChild(i), var))
+                        throw new RuntimeException ("The bounds of the loop of line " + loop.getLine() +
+                                                    " depend on " + var + " and can't be collapsed");
+                }
+            }
+            String var = loop.getChild(0).getChild(0).getText();
+            if (loopVars.contains(var))
+                throw new RuntimeException ("The collapsed loops must use different variables:" + loop.getLine());
+            loopVars.add(var);
+            if (level == depth) return;
+
+            AslTree body = loop.getChild(3);
+            if (body.getChildCount() != 1 || body.getChild(0).getType() != AslLexer.FOR)
+                throw new RuntimeException ("The loops of the parallel_for of line " + t.getLine() +
+                                            " are not perfectly nested " + depth + " levels deep");
+            loop = body.getChild(0);
+            canonicalLoops.add(loop);
+        }
+    }
+
+    /**
+     * Generates a nest of loops blocked in tiles. For each of the n loops
+     * of the nest (as many as tile sizes) a tile loop is generated that
+     * walks the iteration space with a step of the tile size. The original
+     * loops, nested inside the n tile loops, walk the iterations of a tile,
+     * bounded by the end of the iteration space for the remainder tiles.
+     * In a parallel_for the omp for pragma (already generated) distributes
+     * the tile loops. The loops must be perfectly nested, with rectangular
+     * bounds and of the form for (v = lb; v < ub (or v <= ub); v = v + 1).
+     * @param t The AST of the outermost loop.
+     * @param tileNode The AST of the tile clause.
+     */
+    private void generateTiledLoops(AslTree t, AslTree tileNode, StringBuilder genCode) throws ParallelException {
+        int depth = tileNode.getChildCount();
+        checkPerfectNest(t, depth);
+
+        AslTree[] loops = new AslTree[depth];
+        String[] lower = new String[depth];
+        String[] upper = new String[depth];
+        AslTree loop = t;
+        for (int level = 0; level < depth; ++level) {
+            loops[level] = loop;
+            String var = loop.getChild(0).getChild(0).getText();
+            AslTree cond = loop.getChild(1);
+            AslTree step = loop.getChild(2);
+            boolean canonical = loop.getChild(0).getChild(0).getType() == AslLexer.ID &&
+                                (cond.getType() == AslLexer.LT || cond.getType() == AslLexer.LE) &&
+                                cond.getChild(0).getType() == AslLexer.ID && cond.getChild(0).getText().equals(var) &&
+                                !referencesVariable(cond.getChild(1), var) &&
+                                step.getChild(0).getType() == AslLexer.ID && step.getChild(0).getText().equals(var) &&
+                                step.getChild(1).getType() == AslLexer.PLUS &&
+                                sameTree(step.getChild(1).getChild(0), step.getChild(0)) &&
+                                step.getChild(1).getChild(1).getType() == AslLexer.INTLIT &&
+                                step.getChild(1).getChild(1).getIntValue() == 1;
+            if (!canonical)
+                throw new RuntimeException ("The loop of line " + loop.getLine() +
+                                            " can't be tiled: it must be for (v = lb; v < ub; v = v + 1)");
+            if (tileNode.getChild(level).getIntValue() < 1)
+                throw new RuntimeException ("The tile sizes must be positive:" + tileNode.getLine());
+
+            Data variant = Stack.getVariable(var);
+            if (variant.isShared() && !inNotSyncRegion && inParallelRegion) 
+                throw new RuntimeException ("Variant of the header of a parallel_for must be first private / private variable in");
+            if (!variant.isInteger()) throw new RuntimeException ("Variant must be an integer for a boucle for"); 
+
+            StringBuilder bound = new StringBuilder();
+            checkInteger(generateExpression(loop.getChild(0).getChild(1), bound));
+            lower[level] = bound.toString();
+            bound = new StringBuilder();
+            checkInteger(generateExpression(cond.getChild(1), bound));
+            // v <= ub is walked as v < ub + 1
+            upper[level] = bound + (cond.getType() == AslLexer.LE ? " + 1" : "");
+
+            if (level < depth - 1) loop = loop.getChild(3).getChild(0);
+        }
+
+        // tile loops
+        for (int level = 0; level < depth; ++level) {
+            String var = loops[level].getChild(0).getChild(0).getText();
+            String size = tileNode.getChild(level).getText();
+            if (level > 0) genCode.append(xTimesChar(counterSpace));
+            genCode.append("for (int _t" + var + " = " + lower[level] + " ; _t" + var + " < " + upper[level]);
+            genCode.append(" ; _t" + var + " = _t" + var + " + " + size + ") { \n");
+            counterSpace += 2;
+        }
+        // loops inside a tile
+        for (int level = 0; level < depth; ++level) {
+            String var = loops[level].getChild(0).getChild(0).getText();
+            String size = tileNode.getChild(level).getText();
+            genCode.append(xTimesChar(counterSpace));
+            genCode.append("for (" + var + " = _t" + var + " ; " + var + " < min(_t" + var + " + " + size + ", " + upper[level] + ")");
+            genCode.append(" ; " + var + " = " + var + " + 1) { \n");
+            counterSpace += 2;
+        }
+
+        generateListInstructions(loops[depth - 1].getChild(3), genCode);
+
+        for (int level = 0; level < 2 * depth; ++level) {
+            counterSpace -= 2;
+            genCode.append(xTimesChar(counterSpace) + "} \n");
+        }
+    }
+
+    /**
+     * Reduces the index expressions of a for that are linear functions of
+     * the loop variable, a*v + b, where a and b are loop invariant. Before
+     * the loop, a block is opened declaring a variable with the initial
+     * value of each expression, which is incremented with the loop variable
+     * (a step of v = v + c adds a*c). The invariant index expressions are
+     * also computed before the loop, unless they may trap. The indexes of
+     * the inner loops are reduced by the inner loops, unless they are
+     * invariant for them.
+     * @param steps The updates of the offsets, for the header of the loop.
+     * @return The reduced index expressions (none if the block is not opened).
+     */
+    private ArrayList<AslTree> generateIndexOffsets(AslTree t, StringBuilder steps, StringBuilder genCode) {
+        ArrayList<AslTree> offsets = new ArrayList<AslTree>();
+        AslTree init = t.getChild(0);
+        AslTree step = t.getChild(2);
+        // the lower bound is evaluated again for the offsets
+        if (init.getChild(0).getType() != AslLexer.ID || containsFuncall(init.getChild(1))) return offsets;
+        String var = init.getChild(0).getText();
+
+        // v = v + c or v = v - c
+        AslTree increment = step.getChild(1);
+        boolean canonical = step.getChild(0).getType() == AslLexer.ID && step.getChild(0).getText().equals(var) &&
+                            (increment.getType() == AslLexer.PLUS || increment.getType() == AslLexer.MINUS) &&
+                            increment.getChildCount() == 2 &&
+                            sameTree(increment.getChild(0), step.getChild(0)) &&
+                            increment.getChild(1).getType() == AslLexer.INTLIT;
+        if (!canonical) return offsets;
+        AslTree stride = increment.getChild(1).dupTree();
+        if (increment.getType() == AslLexer.MINUS) stride = negate(stride);
+
+        HashSet<String> variant = new HashSet<String>();
+        collectModifiedVariables(t.getChild(3), variant);
+        if (variant.contains(var)) return offsets;
+        variant.add(var);
+
+        ArrayList<AslTree> indexes = new ArrayList<AslTree>();
+        collectIndexes(t.getChild(3), indexes);
+
+        // the declarations are inside the block
+        counterSpace += 2;
+        StringBuilder declarations = new StringBuilder();
+        ArrayList<AslTree> reduced = new ArrayList<AslTree>();
+        for (AslTree index : indexes) {
+            if (index.getType() == AslLexer.ID || index.getType() == AslLexer.INTLIT) continue;
+            Pair<AslTree,AslTree> linear = getLinearForm(index, var, variant);
+            if (linear == null) continue;
+
+            // the same expression uses the same offset
+            String name = null;
+            for (AslTree other : reduced) {
+                if (sameTree(other, index)) name = indexOffsets.get(other);
+            }
+            if (name == null) {
+                name = "_o" + (++numOffsets);
+                AslTree coef = linear.getElement0();
+                AslTree first = add(linear.getElement1(), multiply(coef, init.getChild(1).dupTree()));
+                if (first == null) first = new AslTree(AslLexer.INTLIT, "0", index);
+                declarations.append(xTimesChar(counterSpace) + "int " + name + " = ");
+                checkInteger(generateExpression(Optimizer.fold(first), declarations));
+                declarations.append(";" + "\n");
+
+                AslTree delta = multiply(coef, stride);
+                if (delta != null) {
+                    StringBuilder deltaCode = new StringBuilder();
+                    delta = Optimizer.fold(delta);
+                    checkInteger(generateExpression(delta, deltaCode));
+                    Long constant = Optimizer.getIntConstant(delta);
+                    if (constant != null && constant < 0)
+                        steps.append(", " + name + " = " + name + " - " + (-constant));
+                    else {
+                        // the non-atomic increments are computed once
+                        if (constant == null && delta.getType() != AslLexer.ID) {
+                            declarations.append(xTimesChar(counterSpace) + "int _s" + numOffsets + " = " + deltaCode + ";" + "\n");
+                            deltaCode = new StringBuilder("_s" + numOffsets);
+                        }
+                        steps.append(", " + name + " = " + name + " + " + deltaCode);
+                    }
+                }
+            }
+            reduced.add(index);
+            indexOffsets.put(index, name);
+        }
+        if (reduced.isEmpty()) {
+            counterSpace -= 2;
+            return reduced;
+        }
+        genCode.append("{" + "\n" + declarations + xTimesChar(counterSpace));
+        return reduced;
+    }
+
+    /**
+     * Collects the variables modified in an AST: assigned, read, passed
+     * by reference or declared (they are defined again in each iteration).
+     */
+    private void collectModifiedVariables(AslTree t, HashSet<String> modified) {
+        switch (t.getType()) {
+            case AslLexer.ASSIGN:
+                if (t.getChild(0).getType() == AslLexer.ID) modified.add(t.getChild(0).getText());
+                break;
+            case AslLexer.READ:
+            case AslLexer.LOAD:
+            case AslLexer.READALL:
+                modified.add(t.getChild(0).getText());
+                break;
+            case AslLexer.DECL:
+            {
+                AslTree identNode = t.getChild(1);
+                modified.add(identNode.getType() == AslLexer.OPENC ? identNode.getChild(0).getText() : identNode.getText());
+                break;
+            }
+            case AslLexer.FUNCALL:
+            {
+                AslTree callee = FuncName2Tree.get(t.getChild(0).getText());
+                AslTree args = t.getChild(1);
+                for (int i = 0; callee != null && i < args.getChildCount() && i < callee.getChild(1).getChildCount(); ++i) {
+                    if (callee.getChild(1).getChild(i).getChild(0).getType() == AslLexer.PREF &&
+                        args.getChild(i).getType() == AslLexer.ID)
+                        modified.add(args.getChild(i).getText());
+                }
+                break;
+            }
+            default: break;
+        }
+        int n = t.getChildCount();
+        for (int i = 0; i < n; ++i) collectModifiedVariables(t.getChild(i), modified);
+    }
+
+    /** Collects the index expressions of the vector accesses not reduced yet. */
+    private void collectIndexes(AslTree t, ArrayList<AslTree> indexes) {
+        if (t.getType() == AslLexer.OPENC && !indexOffsets.containsKey(t.getChild(1)))
+            indexes.add(t.getChild(1));
+        int n = t.getChildCount();
+        for (int i = 0; i < n; ++i) collectIndexes(t.getChild(i), indexes);
+    }
+
+    /**
+     * Returns the coefficient and the invariant term of an expression
+     * that is a linear function of a variable, null if it is not linear
+     * or it has terms that are not invariant. A null coefficient or term
+     * stands for 0.
+     * @param variant The variables modified in the loop.
+     */
+    private static Pair<AslTree,AslTree> getLinearForm(AslTree t, String var, HashSet<String> variant) {
+        if (!referencesVariable(t, var))
+            return isInvariant(t, variant) && !canTrap(t) ? new Pair<AslTree,AslTree>(null, t.dupTree()) : null;
+        if (t.getType() == AslLexer.ID) return new Pair<AslTree,AslTree>(new AslTree(AslLexer.INTLIT, "1", t), null);
+
+        if (t.getType() == AslLexer.MINUS && t.getChildCount() == 1) {
+            Pair<AslTree,AslTree> l = getLinearForm(t.getChild(0), var, variant);
+            if (l == null) return null;
+            return new Pair<AslTree,AslTree>(negate(l.getElement0()), negate(l.getElement1()));
+        }
+        if (t.getChildCount() != 2) return null;
+        switch (t.getType()) {
+            case AslLexer.PLUS:
+            case AslLexer.MINUS:
+            {
+                Pair<AslTree,AslTree> l1 = getLinearForm(t.getChild(0), var, variant);
+                Pair<AslTree,AslTree> l2 = getLinearForm(t.getChild(1), var, variant);
+                if (l1 == null || l2 == null) return null;
+                if (t.getType() == AslLexer.PLUS)
+                    return new Pair<AslTree,AslTree>(add(l1.getElement0(), l2.getElement0()),
+                                                     add(l1.getElement1(), l2.getElement1()));
+                return new Pair<AslTree,AslTree>(add(l1.getElement0(), negate(l2.getElement0())),
+                                                 add(l1.getElement1(), negate(l2.getElement1())));
+            }
+            case AslLexer.MUL:
+            {
+                // one of the factors must be invariant
+                for (int i = 0; i < 2; ++i) {
+                    AslTree factor = t.getChild(i);
+                    if (referencesVariable(factor, var) || !isInvariant(factor, variant) || canTrap(factor)) continue;
+                    Pair<AslTree,AslTree> l = getLinearForm(t.getChild(1 - i), var, variant);
+                    if (l == null) return null;
+                    return new Pair<AslTree,AslTree>(multiply(factor.dupTree(), l.getElement0()),
+                                                     multiply(factor.dupTree(), l.getElement1()));
+                }
+                return null;
+            }
+            default: return null;
+        }
+    }
+
+    /**
+     * Checks whether the evaluation of an expression may trap (a division
+     * by zero). The terms of the offsets are computed before the loop, even
+     * if the loop has no iterations or the access is guarded by a condition.
+     */
+    private static boolean canTrap(AslTree t) {
+        if (t.getType() == AslLexer.DIV || t.getType() == AslLexer.MOD) return true;
+        int n = t.getChildCount();
+        for (int i = 0; i < n; ++i) {
+            if (canTrap(t.getChild(i))) return true;
+        }
+        return false;
+    }
+
+    /** Checks that an expression has the same value in all the iterations of a loop. */
+    private static boolean isInvariant(AslTree t, HashSet<String> variant) {
+        switch (t.getType()) {
+            case AslLexer.ID: return !variant.contains(t.getText());
+            case AslLexer.FUNCALL:
+            case AslLexer.OPENC:
+                return false;
+            default: break;
+        }
+        int n = t.getChildCount();
+        for (int i = 0; i < n; ++i) {
+            if (!isInvariant(t.getChild(i), variant)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Generates a for of the serial code as a parallel loop, when it can
+     * be proved that its iterations are independent (option -autopar).
+     * The scalars written in the body are private (lastprivate, to keep
+     * their final values) or reductions. It reports on stderr the loops
+     * that are parallelized and the reason why the others are not.
+     * @return True if the loop has been generated.
+     */
+    private boolean generateAutoParallelLoop(AslTree t, StringBuilder genCode) throws ParallelException {
+        LinkedHashMap<String,String> reductions = findReductions(t, false);
+        ArrayList<String> lastPrivate = new ArrayList<String>();
+        String reason = checkIndependentIterations(t, reductions, lastPrivate);
+        if (reason != null) {
+            System.err.println ("Note: The loop of line " + t.getLine() + " is not parallelized: " + reason);
+            return false;
+        }
+        System.err.println ("Note: The loop of line " + t.getLine() + " is parallelized");
+
+        ArrayList<String> views = generateRestrictViews(t, genCode);
+        genCode.append("#pragma omp parallel for lastprivate(" + String.join(", ", lastPrivate) + ")");
+        genCode.append(generateReductionClauses(reductions, t));
+        genCode.append("\n" + xTimesChar(counterSpace));
+        inAutoParallelLoop = true;
+        generateHeaderFor(t, genCode);
+        generateListInstructions(t.getChild(3), genCode);
+        inAutoParallelLoop = false;
+        counterSpace -= 2;
+        genCode.append(xTimesChar(counterSpace) + "} \n");
+        closeRestrictViews(views, genCode);
+        for (String name : reductions.keySet()) Stack.getVariable(name).setShared(true);
+        return true;
+    }
+
+    /**
+     * Checks that the iterations of a loop are independent. The loop
+     * must be for (v = lb; v op ub; v = v +/- c) with invariant bounds,
+     * and its body can't contain calls, input/output, returns nor
+     * parallel constructs. The scalars declared outside the loop and
+     * written in the body must be reductions or be assigned before they
+     * are read in each iteration. All the accesses to a written vector
+     * must have the subscript a*v + r, with the same stride a, and r
+     * must be either the same invariant expression (a being a constant),
+     * or r = j + c, j being the variable of an enclosing inner loop whose
+     * range keeps r in [0, a).
+     * @param lastPrivate The scalars to privatize (filled by the function).
+     * @return The reason why the iterations may be dependent, null if they are independent.
+     */
+    private String checkIndependentIterations(AslTree t, LinkedHashMap<String,String> reductions,
+                                              ArrayList<String> lastPrivate) {
+        AslTree init = t.getChild(0);
+        AslTree cond = t.getChild(1);
+        AslTree step = t.getChild(2);
+        if (init.getChild(0).getType() != AslLexer.ID) return "the loop variable is not a scalar";
+        String var = init.getChild(0).getText();
+        AslTree increment = step.getChild(1);
+        boolean canonical = cond.getChild(0).getType() == AslLexer.ID && cond.getChild(0).getText().equals(var) &&
+                            !referencesVariable(cond.getChild(1), var) &&
+                            step.getChild(0).getType() == AslLexer.ID && step.getChild(0).getText().equals(var) &&
+                            (increment.getType() == AslLexer.PLUS || increment.getType() == AslLexer.MINUS) &&
+                            increment.getChildCount() == 2 && sameTree(increment.getChild(0), step.getChild(0)) &&
+                            increment.getChild(1).getType() == AslLexer.INTLIT;
+        if (!canonical) return "it is not of the form for (v = lb; v < ub; v = v + c)";
+
+        AslTree body = t.getChild(3);
+        String construct = findSerialConstruct(body);
+        if (construct != null) return "it contains " + construct;
+
+        HashSet<String> modified = new HashSet<String>();
+        collectModifiedVariables(body, modified);
+        if (modified.contains(var)) return "the loop variable is modified in the body";
+        if (!isInvariant(init.getChild(1), modified) || !isInvariant(cond.getChild(1), modified))
+            return "the bounds are not invariant";
+
+        // scalars
+        HashSet<String> declared = new HashSet<String>();
+        collectDeclaredVariables(body, declared);
+        lastPrivate.add(var);
+        for (String name : modified) {
+            if (declared.contains(name) || reductions.containsKey(name)) continue;
+            if (!isAssignedFirst(body, name)) return "the scalar " + name + " carries values between iterations";
+            lastPrivate.add(name);
+        }
+
+        // vectors
+        LinkedHashMap<String,ArrayList<AslTree>> accesses = new LinkedHashMap<String,ArrayList<AslTree>>();
+        HashSet<String> written = new HashSet<String>();
+        collectVectorAccesses(body, accesses, written);
+        HashSet<String> variant = new HashSet<String>(modified);
+        HashMap<String,Integer> innerLoops = new HashMap<String,Integer>();
+        collectLoopVariables(body, innerLoops);
+        variant.removeAll(innerLoops.keySet());
+        for (String name : written) {
+            if (declared.contains(name)) continue;
+            Data vector = Stack.getVariable(name);
+            if (vector.isBoolean()) return "it writes the bool vector " + name;
+            // another parameter may be the same vector, accessed at other positions
+            if (vector.isReference() && aliasedFunctions.contains(currentFunction))
+                return "the function may receive " + name + " and another vector parameter as the same vector";
+            String reason = checkDisjointAccesses(t, var, name, accesses.get(name), variant, innerLoops.keySet());
+            if (reason != null) return reason;
+        }
+        return null;
+    }
+
+    /**
+     * Checks that different iterations of a loop can't access the same
+     * element of a vector. All the subscripts must be a*v + r, with the
+     * same stride a, and r must be either the same invariant expression
+     * (a being a nonzero constant), or in [0, a) (see isInStride).
+     * @param loop The loop, whose variable is var.
+     * @param accesses The accesses to the vector.
+     * @param variant The variables modified in the loop, but the variables of the inner loops.
+     * @param innerLoops The variables of the inner loops.
+     * @return The reason why two iterations may access the same element, null if they can't.
+     */
+    private static String checkDisjointAccesses(AslTree loop, String var, String name, ArrayList<AslTree> accesses,
+                                                HashSet<String> variant, Set<String> innerLoops) {
+        AslTree stride = null;
+        boolean sameOffsets = true;
+        ArrayList<AslTree> offsets = new ArrayList<AslTree>();
+        for (AslTree access : accesses) {
+            Pair<AslTree,AslTree> linear = getLinearForm(access.getChild(1), var, variant);
+            if (linear == null) return "the subscript of " + name + " of line " + access.getLine() + " is not affine";
+            if (linear.getElement0() == null)
+                return "all the iterations access the same elements of " + name;
+            AslTree a = Optimizer.fold(linear.getElement0());
+            AslTree r = linear.getElement1() == null ? null : Optimizer.fold(linear.getElement1());
+            if (stride == null) stride = a;
+            else if (!sameTree(stride, a)) return "the subscripts of " + name + " have different strides";
+            if (!offsets.isEmpty()) {
+                AslTree first = offsets.get(0);
+                sameOffsets &= first == null ? r == null : r != null && sameTree(first, r);
+            }
+            if (r != null) {
+                for (String inner : innerLoops) sameOffsets &= !referencesVariable(r, inner);
+            }
+            offsets.add(r);
+        }
+        Long constantStride = Optimizer.getIntConstant(stride);
+        if (sameOffsets && constantStride != null && constantStride != 0) return null;
+        for (int i = 0; i < offsets.size(); ++i) {
+            if (!isInStride(accesses.get(i), offsets.get(i), stride, loop))
+                return "different iterations may access the same element of " + name;
+        }
+        return null;
+    }
+
+    /**
+     * Finds the shared vectors whose elements written in a parallel_for
+     * are different in each iteration, so that the assignments need no
+     * synchronization. Besides, the vector can't be written outside the
+     * worksharing loops of the parallel region, since that code may run
+     * concurrently with the loop, nor by the functions called in the loop.
+     * In the parallel versions of the functions, the code of the caller
+     * is not known, so the loop must be preceded by a barrier when it
+     * writes vectors received by reference (see needsEntryBarrier). The decisions
+     * are reported with the option -verbose.
+     * @param distributed The number of loops of the nest distributed among the threads.
+     */
+    private HashSet<String> findDisjointWrites(AslTree t, int distributed) {
+        HashSet<String> disjoint = new HashSet<String>();
+        if (t.getChild(0).getChild(0).getType() != AslLexer.ID) return disjoint;
+        String var = t.getChild(0).getChild(0).getText();
+        AslTree body = t.getChild(3);
+
+        LinkedHashMap<String,ArrayList<AslTree>> accesses = new LinkedHashMap<String,ArrayList<AslTree>>();
+        HashSet<String> written = new HashSet<String>();
+        collectVectorAccesses(body, accesses, written);
+        HashSet<String> declared = new HashSet<String>();
+        collectDeclaredVariables(body, declared);
+        HashSet<String> variant = new HashSet<String>();
+        collectModifiedVariables(body, variant);
+        HashMap<String,Integer> innerLoops = new HashMap<String,Integer>();
+        collectLoopVariables(body, innerLoops);
+        variant.removeAll(innerLoops.keySet());
+
+        AslTree region = getEnclosingRegion(t);
+
+        for (String name : written) {
+            if (declared.contains(name)) continue;
+            Data vector = Stack.getVariable(name);
+            if (!vector.isShared()) continue;
+            ArrayList<AslTree> writes = new ArrayList<AslTree>();
+            for (AslTree access : accesses.get(name)) {
+                if (access.getParent().getType() == AslLexer.ASSIGN && access.getChildIndex() == 0) writes.add(access);
+            }
+            String reason;
+            if (distributed > 1) reason = "the iterations of the inner loops are distributed";
+            else if (vector.isBoolean()) reason = "the elements of bool vectors share words";
+            else if (vector.isReference() && aliasedFunctions.contains(currentFunction))
+                reason = "the function may receive it twice";
+            else if (isPassedToWrittenParam(body, name)) reason = "it is written by a called function";
+            else if (isWrittenOutsideLoops(region, name)) reason = "it is written outside the worksharing loops";
+            else reason = checkDisjointAccesses(t, var, name, writes, variant, innerLoops.keySet());
+
+            if (reason == null) disjoint.add(name);
+            if (!verbose) continue;
+            if (reason == null)
+                System.err.println ("Note: The writes to " + name + " in the parallel_for of line " + t.getLine() +
+                                    " are disjoint, they are not synchronized");
+            else
+                System.err.println ("Note: The writes to " + name + " in the parallel_for of line " + t.getLine() +
+                                    " are synchronized: " + reason);
+        }
+        return disjoint;
+    }
+
+    /** Returns the parallel region of a construct, or its function for the parallel versions. */
+    private static AslTree getEnclosingRegion(AslTree t) {
+        AslTree region = t;
+        while (region.getType() != AslLexer.BEGIN_PARALLEL && region.getParent().getType() != AslLexer.PROG)
+            region = (AslTree) region.getParent();
+        return region;
+    }
+
+    /**
+     * Checks whether a parallel_for of a parallel version writes without
+     * synchronization a vector received by reference. The caller may have
+     * written it just before the call, without a barrier. The barriers
+     * at the end of the function are kept (see findRedundantBarriers), so
+     * the code of the caller after the call is not concurrent with the loop.
+     */
+    private boolean needsEntryBarrier(AslTree t) {
+        if (getEnclosingRegion(t).getType() == AslLexer.BEGIN_PARALLEL) return false;
+        for (String name : disjointVectors) {
+            if (Stack.getVariable(name).isReference()) return true;
+        }
+        return false;
+    }
+
+    /** Checks whether a vector is passed to a parameter written by the called function. */
+    private boolean isPassedToWrittenParam(AslTree t, String name) {
+        if (t.getType() == AslLexer.FUNCALL) {
+            boolean[] calleeWritten = writtenParams.get(t.getChild(0).getText());
+            AslTree args = t.getChild(1);
+            for (int i = 0; calleeWritten != null && i < args.getChildCount() && i < calleeWritten.length; ++i) {
+                AslTree a = args.getChild(i);
+                if (calleeWritten[i] && a.getType() == AslLexer.ID && a.getText().equals(name)) return true;
+            }
+        }
+        int n = t.getChildCount();
+        for (int i = 0; i < n; ++i) {
+            if (isPassedToWrittenParam(t.getChild(i), name)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the elements of a vector are written outside the
+     * worksharing loops, which end with a barrier.
+     */
+    private boolean isWrittenOutsideLoops(AslTree t, String name) {
+        switch (t.getType()) {
+            case AslLexer.PARALLEL_FOR:
+            case AslLexer.PAR_ASSIGN:
+                return false;
+            case AslLexer.ASSIGN:
+            {
+                AslTree identNode = t.getChild(0);
+                if (identNode.getType() == AslLexer.OPENC && identNode.getChild(0).getText().equals(name)) return true;
+                break;
+            }
+            case AslLexer.LOAD:
+            case AslLexer.READALL:
+                if (t.getChild(0).getText().equals(name)) return true;
+                break;
+            case AslLexer.FUNCALL:
+                if (isPassedToWrittenParam(t, name)) return true;
+                break;
+            default: break;
+        }
+        int n = t.getChildCount();
+        for (int i = 0; i < n; ++i) {
+            if (isWrittenOutsideLoops(t.getChild(i), name)) return true;
+        }
+        return false;
+    }
+
+    /** Returns the description of a construct that can't be in a parallel loop, null if there is none. */
+    private static String findSerialConstruct(AslTree t) {
+        switch (t.getType()) {
+            case AslLexer.FUNCALL: return "a call to " + t.getChild(0).getText();
+            case AslLexer.READ:
+            case AslLexer.WRITE:
+            case AslLexer.LOAD:
+            case AslLexer.STORE:
+            case AslLexer.READALL: return "input/output";
+            case AslLexer.RETURN: return "a return";
+            case AslLexer.BEGIN_PARALLEL:
+            case AslLexer.PARALLEL_FOR:
+            case AslLexer.TASKLOOP:
+            case AslLexer.PAR_ASSIGN:
+            case AslLexer.BARRIER:
+            case AslLexer.SPAWN:
+            case AslLexer.SYNC: return "parallel constructs";
+            default: break;
+        }
+        int n = t.getChildCount();
+        for (int i = 0; i < n; ++i) {
+            String construct = findSerialConstruct(t.getChild(i));
+            if (construct != null) return construct;
+        }
+        return null;
+    }
+
+    /** Collects the names of the variables declared in the AST. */
+    private static void collectDeclaredVariables(AslTree t, HashSet<String> declared) {
+        if (t.getType() == AslLexer.DECL) {
+            AslTree identNode = t.getChild(1);
+            declared.add(identNode.getType() == AslLexer.OPENC ? identNode.getChild(0).getText() : identNode.getText());
+        }
+        int n = t.getChildCount();
+        for (int i = 0; i < n; ++i) collectDeclaredVariables(t.getChild(i), declared);
+    }
+
+    /** Collects the variables of the loops of the AST. */
+    private static void collectLoopVariables(AslTree t, HashMap<String,Integer> loops) {
+        if (t.getType() == AslLexer.FOR && t.getChild(0).getChild(0).getType() == AslLexer.ID)
+            loops.put(t.getChild(0).getChild(0).getText(), t.getLine());
+        int n = t.getChildCount();
+        for (int i = 0; i < n; ++i) collectLoopVariables(t.getChild(i), loops);
+    }
+
+    /**
+     * Checks that the first instruction of a block that uses a scalar
+     * assigns it, either an assignment or the header of a for, without
+     * reading it. Then the scalar doesn't carry values between iterations.
+     */
+    private static boolean isAssignedFirst(AslTree body, String name) {
+        int n = body.getChildCount();
+        for (int i = 0; i < n; ++i) {
+            AslTree s = body.getChild(i);
+            if (!referencesVariable(s, name)) continue;
+            AslTree assign = s.getType() == AslLexer.FOR ? s.getChild(0) : s;
+            return assign.getType() == AslLexer.ASSIGN && assign.getChild(0).getType() == AslLexer.ID &&
+                   assign.getChild(0).getText().equals(name) && !referencesVariable(assign.getChild(1), name);
+        }
+        return false;
+    }
+
+    /** Collects the accesses to the elements of the vectors and the vectors written. */
+    private static void collectVectorAccesses(AslTree t, LinkedHashMap<String,ArrayList<AslTree>> accesses,
+                                              HashSet<String> written) {
+        int n = t.getChildCount();
+        for (int i = 0; i < n; ++i) {
+            AslTree c = t.getChild(i);
+            if (c.getType() == AslLexer.OPENC && t.getType() != AslLexer.DECL) {
+                String name = c.getChild(0).getText();
+                if (!accesses.containsKey(name)) accesses.put(name, new ArrayList<AslTree>());
+                accesses.get(name).add(c);
+                if (t.getType() == AslLexer.ASSIGN && i == 0) written.add(name);
+            }
+            collectVectorAccesses(c, accesses, written);
+        }
+    }
+
+    /**
+     * Checks that the offset r of an access a*v + r is in [0, a). It must
+     * be a constant, or j + c with the access inside the loop of j, and
+     * the range of the loop keeping r in [0, a).
+     * @param loop The parallelized loop.
+     */
+    private static boolean isInStride(AslTree access, AslTree r, AslTree stride, AslTree loop) {
+        String inner = null;
+        long c = 0;
+        Long constant = r == null ? Long.valueOf(0) : Optimizer.getIntConstant(r);
+        if (constant != null) c = constant;
+        else if (r.getType() == AslLexer.ID) inner = r.getText();
+        else if ((r.getType() == AslLexer.PLUS || r.getType() == AslLexer.MINUS) && r.getChildCount() == 2 &&
+                 r.getChild(0).getType() == AslLexer.ID && Optimizer.getIntConstant(r.getChild(1)) != null) {
+            inner = r.getChild(0).getText();
+            c = Optimizer.getIntConstant(r.getChild(1));
+            if (r.getType() == AslLexer.MINUS) c = -c;
+        }
+        else if (r.getType() == AslLexer.PLUS && r.getChildCount() == 2 &&
+                 r.getChild(1).getType() == AslLexer.ID && Optimizer.getIntConstant(r.getChild(0)) != null) {
+            inner = r.getChild(1).getText();
+            c = Optimizer.getIntConstant(r.getChild(0));
+        }
+        else return false;
+
+        Long a = Optimizer.getIntConstant(stride);
+        if (inner == null) return a != null && c >= 0 && c + 1 <= a;
+
+        // the loop of j enclosing the access
+        AslTree node = access;
+        while (node != loop && !(node.getType() == AslLexer.FOR && node.getChild(0).getChild(0).getText().equals(inner)))
+            node = (AslTree) node.getParent();
+        if (node == loop) return false;
+        AslTree init = node.getChild(0);
+        AslTree cond = node.getChild(1);
+        AslTree step = node.getChild(2);
+        Long lb = Optimizer.getIntConstant(init.getChild(1));
+        boolean increasing = (cond.getType() == AslLexer.LT || cond.getType() == AslLexer.LE) &&
+                             cond.getChild(0).getType() == AslLexer.ID && cond.getChild(0).getText().equals(inner) &&
+                             step.getChild(1).getType() == AslLexer.PLUS && step.getChild(1).getChildCount() == 2 &&
+                             sameTree(step.getChild(1).getChild(0), step.getChild(0)) &&
+                             Optimizer.getIntConstant(step.getChild(1).getChild(1)) != null &&
+                             Optimizer.getIntConstant(step.getChild(1).getChild(1)) > 0;
+        if (lb == null || !increasing || lb + c < 0) return false;
+
+        // ub + extra <= a
+        AslTree ub = cond.getChild(1);
+        long extra = c + (cond.getType() == AslLexer.LE ? 1 : 0);
+        Long ubValue = Optimizer.getIntConstant(ub);
+        if (ubValue != null && a != null) return ubValue + extra <= a;
+        if (sameTree(ub, stride)) return extra <= 0;
+        if (ub.getType() == AslLexer.MINUS && ub.getChildCount() == 2 && sameTree(ub.getChild(0), stride) &&
+            Optimizer.getIntConstant(ub.getChild(1)) != null)
+            return extra <= Optimizer.getIntConstant(ub.getChild(1));
+        return false;
+    }
+
+    /** Builds the sum of two expressions (null stands for 0). */
+    private static AslTree add(AslTree a, AslTree b) {
+        if (a == null || isLiteral(a, "0")) return b;
+        if (b == null || isLiteral(b, "0")) return a;
+        // a + -b is a - b
+        if (b.getType() == AslLexer.MINUS && b.getChildCount() == 1) {
+            AslTree difference = new AslTree(AslLexer.MINUS, "-", a);
+            difference.addChild(a);
+            difference.addChild(b.getChild(0));
+            return difference;
+        }
+        AslTree sum = new AslTree(AslLexer.PLUS, "+", a);
+        sum.addChild(a);
+        sum.addChild(b);
+        return sum;
+    }
+
+    /** Builds the product of two expressions (null stands for 0). */
+    private static AslTree multiply(AslTree a, AslTree b) {
+        if (a == null || b == null || isLiteral(a, "0") || isLiteral(b, "0")) return null;
+        if (isLiteral(a, "1")) return b;
+        if (isLiteral(b, "1")) return a;
+        AslTree product = new AslTree(AslLexer.MUL, "*", a);
+        product.addChild(a);
+        product.addChild(b);
+        return product;
+    }
+
+    /** Builds the negation of an expression (null stands for 0). */
+    private static AslTree negate(AslTree a) {
+        if (a == null) return null;
+        AslTree minus = new AslTree(AslLexer.MINUS, "-", a);
+        minus.addChild(a);
+        return minus;
+    }
+
+    private static boolean isLiteral(AslTree t, String value) {
+        return t.getType() == AslLexer.INTLIT && t.getText().equals(value);
+    }
+
+    /** Returns the name used to access the elements of a vector. */
+    private String getVectorAccess(String name) {
+        String view = vectorViews.get(name);
+        return view == null ? name : view;
+    }
+
+    /**
+     * Opens a block declaring pointers to the data of the vectors listed
+     * in the aligned option of a simd clause. Inside the loop the elements
+     * of these vectors are accessed through the pointers, which are aligned
+     * to cache lines by the allocator of the vectors.
+     * @return True if the block has been opened.
+     */
+    private boolean generateAlignedViews(AslTree simdNode, StringBuilder genCode) {
+        boolean opened = false;
+        for (int i = 0; i < simdNode.getChildCount(); ++i) {
+            AslTree option = simdNode.getChild(i);
+            if (option.getType() != AslLexer.ALIGNED) continue;
+            for (int j = 0; j < option.getChildCount(); ++j) {
+                String name = option.getChild(j).getText();
+                Data vector = Stack.getVariable(name);
+                checkVector(vector);
+                if (!vector.isInteger())
+                    throw new RuntimeException ("Only int vectors can be aligned in a simd loop:" + option.getLine());
+                if (alignedViews.contains(name))
+                    throw new RuntimeException ("The vector " + name + " is already aligned in an enclosing simd loop:" + option.getLine());
+                // the restricted pointer of the enclosing loop is used
+                if (vectorViews.containsKey(name)) continue;
+                if (!opened) {
+                    genCode.append("{" + "\n");
+                    counterSpace += 2;
+                    opened = true;
+                }
+                genCode.append(xTimesChar(counterSpace) + "int *_" + name + " = " + name + ".data();" + "\n");
+                vectorViews.put(name, "_" + name);
+                alignedViews.add(name);
+            }
+        }
+        if (opened) genCode.append(xTimesChar(counterSpace));
+        return opened;
+    }
+
+    /** Closes the block opened by generateAlignedViews. */
+    private void closeAlignedViews(StringBuilder genCode) {
+        for (String name : alignedViews) vectorViews.remove(name);
+        alignedViews.clear();
+        counterSpace -= 2;
+        genCode.append(xTimesChar(counterSpace) + "}" + "\n");
+    }
+
+    /**
+     * Opens a block declaring restricted pointers to the data of the
+     * vectors accessed in a loop, which can't alias: the local vectors and
+     * the parameters of the functions that never receive the same vector
+     * twice. The read-only parameters are accessed through pointers to
+     * constants. The pointers are declared for the loops without calls
+     * nor synchronization constructs, where the vectors are only accessed
+     * through them. The shared vectors whose writes are synchronized (not
+     * disjoint) are accessed directly.
+     * @return The vectors accessed through the pointers (none if the block is not opened).
+     */
+    private ArrayList<String> generateRestrictViews(AslTree t, StringBuilder genCode) {
+        ArrayList<String> views = new ArrayList<String>();
+        if (!canRestrict(t)) return views;
+
+        HashSet<String> modified = new HashSet<String>();
+        collectModifiedVariables(t.getChild(3), modified);
+        LinkedHashMap<String,String> accessed = new LinkedHashMap<String,String>();
+        collectAccessedVectors(t, accessed);
+        HashSet<String> written = new HashSet<String>();
+        collectVectorAccesses(t.getChild(3), new LinkedHashMap<String,ArrayList<AslTree>>(), written);
+        boolean synchronizedCode = inParallelRegion && !inNotSyncRegion;
+        for (String name : accessed.keySet()) {
+            Data vector = Stack.getVariable(name);
+            // vector<bool> has no data
+            if (!vector.isVector() || vector.isBoolean() || modified.contains(name) || vectorViews.containsKey(name))
+                continue;
+            if (vector.isReference() && aliasedFunctions.contains(currentFunction)) continue;
+            // the synchronized writes of the threads access the same elements through their pointers
+            if (synchronizedCode && vector.isShared() && written.contains(name) && !disjointVectors.contains(name))
+                continue;
+            if (views.isEmpty()) {
+                genCode.append("{" + "\n");
+                counterSpace += 2;
+            }
+            String type = vector.getType() + " *__restrict";
+            if (constVectors.contains(name)) type = "const " + type;
+            genCode.append(xTimesChar(counterSpace) + type + " _" + name + " = " + name + ".data();" + "\n");
+            vectorViews.put(name, "_" + name);
+            views.add(name);
+        }
+        if (!views.isEmpty()) genCode.append(xTimesChar(counterSpace));
+        return views;
+    }
+
+    /** Closes the block opened by generateRestrictViews. */
+    private void closeRestrictViews(ArrayList<String> views, StringBuilder genCode) {
+        if (views.isEmpty()) return;
+        for (String name : views) vectorViews.remove(name);
+        counterSpace -= 2;
+        genCode.append(xTimesChar(counterSpace) + "}" + "\n");
+    }
+
+    /** Checks that a loop accesses the vectors only through their elements. */
+    private boolean canRestrict(AslTree t) {
+        switch (t.getType()) {
+            case AslLexer.FUNCALL:
+                if (!hashBuiltinFunc.containsKey(t.getChild(0).getText())) return false;
+                break;
+            case AslLexer.SPAWN:
+            case AslLexer.SYNC:
+            case AslLexer.BARRIER:
+            case AslLexer.TASKLOOP:
+            case AslLexer.PAR_ASSIGN:
+            case AslLexer.BEGIN_PARALLEL:
+            case AslLexer.LOAD:
+            case AslLexer.STORE:
+            case AslLexer.READALL:
+                return false;
+            default: break;
+        }
+        int n = t.getChildCount();
+        for (int i = 0; i < n; ++i) {
+            if (!canRestrict(t.getChild(i))) return false;
+        }
+        return true;
+    }
+
+    /** Collects the vectors whose elements are accessed in the AST. */
+    private static void collectAccessedVectors(AslTree t, LinkedHashMap<String,String> accessed) {
+        if (t.getType() == AslLexer.OPENC) accessed.put(t.getChild(0).getText(), null);
+        int n = t.getChildCount();
+        for (int i = 0; i < n; ++i) collectAccessedVectors(t.getChild(i), accessed);
+    }
+
+    /**
+     * Analyzes the vector parameters of the functions. A parameter is
+     * written if an element is assigned or it is passed to a written
+     * parameter. A function is aliased if a call passes the same vector
+     * in two parameters, or two parameters of an aliased function.
+     */
+    private void analyzeVectorParams() {
+        ArrayList<AslTree> functions = new ArrayList<AslTree>();
+        for (String fname : listFunc) {
+            char last = fname.charAt(fname.length() - 1);
+            if (last == '$' || last == '_') continue;
+            AslTree f = FuncName2Tree.get(fname);
+            functions.add(f);
+            writtenParams.put(fname, new boolean[f.getChild(1).getChildCount()]);
+        }
+        functions.add(FuncName2Tree.get("main"));
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (AslTree f : functions) {
+                HashMap<String,Integer> params = new HashMap<String,Integer>();
+                for (int i = 0; i < f.getChild(1).getChildCount(); ++i) {
+                    AslTree p = f.getChild(1).getChild(i);
+                    if (p.getChildCount() != 1) params.put(p.getChild(0).getText(), i);
+                }
+                changed |= analyzeVectorParams(f, f.getChild(2), params);
+            }
+        }
+    }
+
+    private boolean analyzeVectorParams(AslTree f, AslTree t, HashMap<String,Integer> params) {
+        boolean changed = false;
+        HashSet<String> written = new HashSet<String>();
+        switch (t.getType()) {
+            case AslLexer.ASSIGN:
+                if (t.getChild(0).getType() == AslLexer.OPENC) written.add(t.getChild(0).getChild(0).getText());
+                break;
+            case AslLexer.PAR_ASSIGN:
+            case AslLexer.LOAD:
+            case AslLexer.READALL:
+                written.add(t.getChild(0).getText());
+                break;
+            case AslLexer.FUNCALL:
+            {
+                String fname = t.getChild(0).getText();
+                boolean[] calleeWritten = writtenParams.get(fname);
+                if (calleeWritten == null) break;
+                AslTree args = t.getChild(1);
+                HashSet<String> vectors = new HashSet<String>();
+                boolean aliased = false;
+                for (int i = 0; i < args.getChildCount() && i < calleeWritten.length; ++i) {
+                    AslTree a = args.getChild(i);
+                    if (a.getType() != AslLexer.ID || FuncName2Tree.get(fname).getChild(1).getChild(i).getChildCount() == 1)
+                        continue;
+                    if (calleeWritten[i]) written.add(a.getText());
+                    if (!vectors.add(a.getText())) aliased = true;
+                }
+                // two parameters of an aliased function may be the same vector
+                int fromParams = 0;
+                for (String name : vectors) {
+                    if (params.containsKey(name)) ++fromParams;
+                }
+                if (fromParams > 1 && aliasedFunctions.contains(f.getText())) aliased = true;
+                if (aliased && aliasedFunctions.add(fname)) {
+                    System.err.println ("Note: The function " + fname + " may receive the same vector twice (line " +
+                                        t.getLine() + "), its vector parameters are not restricted");
+                    changed = true;
+                }
+                break;
+            }
+            default: break;
+        }
+        boolean[] fWritten = writtenParams.get(f.getText());
+        for (String name : written) {
+            Integer i = params.get(name);
+            if (i != null && !fWritten[i]) {
+                fWritten[i] = true;
+                changed = true;
+            }
+        }
+        int n = t.getChildCount();
+        for (int i = 0; i < n; ++i) changed |= analyzeVectorParams(f, t.getChild(i), params);
+        return changed;
+    }
+
+    /** Generates the safelen and aligned clauses of a simd loop. */
+    private String generateSimdClauses(AslTree simdNode) {
+        String clauses = "";
+        for (int i = 0; i < simdNode.getChildCount(); ++i) {
+            AslTree option = simdNode.getChild(i);
+            if (option.getType() == AslLexer.SAFELEN) {
+                if (option.getChild(0).getIntValue() < 1)
+                    throw new RuntimeException ("The safelen of a simd loop must be positive:" + option.getLine());
+                clauses += " safelen(" + option.getChild(0).getText() + ")";
+            }
+            else {
+                clauses += " aligned(";
+                for (int j = 0; j < option.getChildCount(); ++j) {
+                    if (j > 0) clauses += ", ";
+                    clauses += "_" + option.getChild(j).getText();
+                }
+                clauses += " : 64)";
+            }
+        }
+        return clauses;
+    }
+
+    /**
+     * Checks that the body of a loop can be executed in SIMD lanes and
+     * returns the data-sharing clauses it needs. The body can't call
+     * functions, do input/output, contain parallel constructs or returns,
+     * or write shared data that needs a critical section. The scalars
+     * declared outside the loop can only be written as accumulations, which
+     * become reductions, or as the variables of nested loops, which become
+     * private.
+     * @param t The AST of the loop.
+     * @param loopReductions The reductions of a parallel_for (already in
+     * its clauses), null for a for.
+     * @return The clauses of the simd construct.
+     */
+    private String checkSimdLoop(AslTree t, LinkedHashMap<String,String> loopReductions) {
+        HashSet<String> locals = new HashSet<String>();
+        LinkedHashMap<String,Boolean> written = new LinkedHashMap<String,Boolean>();
+        HashSet<String> loopVars = new HashSet<String>();
+        checkSimdNode(t.getChild(3), inNotSyncRegion, locals, written, loopVars);
+
+        LinkedHashMap<String,String> reductions = findReductions(t, false);
+        String clauses = "";
+        String privates = "";
+        for (String name : written.keySet()) {
+            if (locals.contains(name)) continue;
+            Data var = Stack.getVariable(name);
+            boolean needsSync = var.isShared() && inParallelRegion && !written.get(name);
+            if (var.isVector()) {
+                if (needsSync && !disjointVectors.contains(name))
+                    throw new RuntimeException ("The simd loop of line " + t.getLine() + " writes the shared vector " + name + " in a critical section");
+            }
+            else if (loopReductions != null && loopReductions.containsKey(name)) {
+                // already a reduction of the parallel_for
+            }
+            else if (reductions.containsKey(name)) {
+                if (needsSync)
+                    throw new RuntimeException ("The simd loop of line " + t.getLine() + " accumulates into the shared variable " + name + " in a critical section");
+                // the reductions of a worksharing loop must be shared by the threads
+                if (loopReductions != null)
+                    throw new RuntimeException ("The simd loop of line " + t.getLine() + " accumulates into the private variable " + name);
+                clauses += " reduction(" + reductions.get(name) + ":" + name + ")";
+            }
+            else if (loopVars.contains(name)) {
+                privates += (privates.isEmpty() ? "" : ", ") + name;
+            }
+            else {
+                throw new RuntimeException ("The simd loop of line " + t.getLine() + " writes the scalar " + name + " declared outside the loop");
+            }
+        }
+        if (!privates.isEmpty()) clauses = " private(" + privates + ")" + clauses;
+        return clauses;
+    }
+
+    /**
+     * Walks the body of a simd loop, rejecting the instructions that can't
+     * be executed in SIMD lanes. It collects the declared variables, the
+     * written variables (mapped to true if all their writes are not
+     * synchronized) and the variables of the nested loops.
+     */
+    private void checkSimdNode(AslTree t, boolean notSync, HashSet<String> locals,
+                               LinkedHashMap<String,Boolean> written, HashSet<String> loopVars) {
+        switch (t.getType()) {
+            case AslLexer.FUNCALL:
+                throw new RuntimeException ("A simd loop can't call functions:" + t.getLine());
+            case AslLexer.READ:
+            case AslLexer.WRITE:
+            case AslLexer.LOAD:
+            case AslLexer.STORE:
+            case AslLexer.READALL:
+                throw new RuntimeException ("A simd loop can't read or write:" + t.getLine());
+            case AslLexer.RETURN:
+                throw new RuntimeException ("A simd loop can't return:" + t.getLine());
+            case AslLexer.BEGIN_PARALLEL:
+            case AslLexer.PARALLEL_FOR:
+            case AslLexer.TASKLOOP:
+            case AslLexer.PAR_ASSIGN:
+            case AslLexer.BARRIER:
+            case AslLexer.SYNC:
+                throw new RuntimeException ("A simd loop can't contain parallel constructs:" + t.getLine());
+            case AslLexer.SIMD:
+                throw new RuntimeException ("Simd loops can't be nested:" + t.getLine());
+            case AslLexer.NOT_SYNC:
+                notSync = true;
+                break;
+            case AslLexer.DECL:
+            {
+                AslTree identNode = t.getChild(1);
+                locals.add(identNode.getType() == AslLexer.OPENC ? identNode.getChild(0).getText() : identNode.getText());
+                break;
+            }
+            case AslLexer.FOR:
+                loopVars.add(t.getChild(0).getChild(0).getText());
+                break;
+            case AslLexer.ASSIGN:
+            {
+                AslTree identNode = t.getChild(0);
+                String name = identNode.getType() == AslLexer.OPENC ? identNode.getChild(0).getText() : identNode.getText();
+                Boolean unsynced = written.get(name);
+                written.put(name, (unsynced == null || unsynced) && notSync);
+                break;
+            }
+            default: break;
+        }
+        int n = t.getChildCount();
+        for (int i = 0; i < n; ++i) checkSimdNode(t.getChild(i), notSync, locals, written, loopVars);
+    }
+
+    /**
+     * Generates the data-sharing clauses of the task executing a spawned
+     * call. The arguments are evaluated when the task runs, so the scalars
+     * used in the arguments passed by value are captured (firstprivate)
+     * when it is created. The vectors and the variables passed by
+     * reference are shared with the task.
+     */
+    private String generateTaskClauses(AslTree callNode) {
+        AslTree callee = FuncName2Tree.get(callNode.getChild(0).getText());
+        if (callee == null)
+            throw new RuntimeException ("Call to unexisting function " + callNode.getChild(0).getText());
+        AslTree params = callee.getChild(1);
+        AslTree args = callNode.getChild(1);
+        ArrayList<String> firstPrivate = new ArrayList<String>();
+        ArrayList<String> shared = new ArrayList<String>();
+        for (int i = 0; i < args.getChildCount() && i < params.getChildCount(); ++i) {
+            AslTree p = params.getChild(i);
+            boolean byReference = p.getChild(0).getType() == AslLexer.PREF || p.getChildCount() != 1;
+            if (byReference && args.getChild(i).getType() == AslLexer.ID) {
+                String name = args.getChild(i).getText();
+                if (!shared.contains(name)) shared.add(name);
+            }
+            else {
+                collectTaskCaptures(args.getChild(i), firstPrivate, shared, new HashSet<String>());
+            }
+        }
+        for (String name : firstPrivate) {
+            if (shared.contains(name))
+                throw new RuntimeException ("The variable " + name + " is passed by value and by reference to a spawned function:" + lineNumber());
+        }
+
+        String clauses = "";
+        if (!firstPrivate.isEmpty()) clauses += " firstprivate(" + String.join(", ", firstPrivate) + ")";
+        if (!shared.isEmpty()) clauses += " shared(" + String.join(", ", shared) + ")";
+        return clauses;
+    }
+
+    /**
+     * Classifies the variables used in an AST executed by a task. The
+     * variables declared in the AST are skipped. Note that a reference
+     * can't be firstprivate, since the referenced object would be copied.
+     */
+    private void collectTaskCaptures(AslTree t, ArrayList<String> firstPrivate, ArrayList<String> shared,
+                                     HashSet<String> declared) {
+        if (t.getType() == AslLexer.DECL) {
+            AslTree identNode = t.getChild(1);
+            declared.add(identNode.getType() == AslLexer.OPENC ?
+                         identNode.getChild(0).getText() : identNode.getText());
+        }
+        if (t.getType() == AslLexer.ID && !declared.contains(t.getText())) {
+            String name = t.getText();
+            Data var = Stack.getVariable(name);
+            ArrayList<String> list = var.isVector() || var.isReference() ? shared : firstPrivate;
+            if (!list.contains(name)) list.add(name);
+        }
+        // The name of a called function is not a variable
+        int first = t.getType() == AslLexer.FUNCALL ? 1 : 0;
+        for (int i = first; i < t.getChildCount(); ++i)
+            collectTaskCaptures(t.getChild(i), firstPrivate, shared, declared);
+    }
+
+    /**
+     * Checks whether a function, or any function it calls, contains
+     * constructs that must be reached by all the threads of the team,
+     * which can't be executed inside a task.
+     */
+    private boolean containsWorksharing(String fname, HashSet<String> visited) {
+        AslTree f = FuncName2Tree.get(fname);
+        if (f == null || f.getChildCount() < 3 || !visited.add(fname)) return false;
+        return containsWorksharing(f.getChild(2), visited);
+    }
+
+    private boolean containsWorksharing(AslTree t, HashSet<String> visited) {
+        switch (t.getType()) {
+            case AslLexer.PARALLEL_FOR:
+            case AslLexer.TASKLOOP:
+            case AslLexer.PAR_ASSIGN:
+            case AslLexer.BARRIER:
+                return true;
+            case AslLexer.FUNCALL:
+                if (containsWorksharing(t.getChild(0).getText(), visited)) return true;
+                break;
+            default: break;
+        }
+        for (int i = 0; i < t.getChildCount(); ++i) {
+            if (containsWorksharing(t.getChild(i), visited)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the expression computing an element of the expression of a
+     * :=, in which the vectors are replaced by their elements at the index.
+     */
+    private AslTree getElementExpression(AslTree t, AslTree index) {
+        if (t.getType() == AslLexer.ID && Stack.getVariable(t.getText()).isVector()) {
+            AslTree access = new AslTree(AslLexer.OPENC, "[", t);
+            access.addChild(t.dupTree());
+            access.addChild(index);
+            return access;
+        }
+        // the elements of vectors are scalars
+        if (t.getType() == AslLexer.OPENC) return t;
+        AslTree element = new AslTree(t.getType(), t.getText(), t);
+        for (int i = 0; i < t.getChildCount(); ++i) element.addChild(getElementExpression(t.getChild(i), index));
+        return element;
+    }
+
+    /**
+     * Finds the last parallel construct (begin_parallel or :=) of a block
+     * that can be fused with the construct at a given position. The
+     * constructs can be separated by assignments, reads and writes
+     * without calls, executed by a single thread of the fused region.
+     * @return The position of the last construct fused, from if there is none.
+     */
+    private int findFusedRegions(AslTree block, int from) {
+        if (!isParallelConstruct(block.getChild(from)) || !canBeFused(block.getChild(from))) return from;
+        int last = from;
+        for (int k = from + 1; k < block.getChildCount(); ++k) {
+            AslTree s = block.getChild(k);
+            if (isParallelConstruct(s)) {
+                if (!canBeFused(s) || !canFuseRegions(block, from, k)) break;
+                last = k;
+            }
+            else if ((s.getType() != AslLexer.ASSIGN && s.getType() != AslLexer.READ && s.getType() != AslLexer.WRITE) ||
+                     containsFuncall(s))
+                break;
+        }
+        return last;
+    }
+
+    /**
+     * Checks that a parallel construct can be part of a fused region. The
+     * regions with their own team of threads are not fused, nor the :=
+     * whose size calls functions: alone, the size calls the serial
+     * versions, but inside a fused region it would call the parallel
+     * versions, which are not generated for it (see collectCalledVersions).
+     */
+    private static boolean canBeFused(AslTree t) {
+        if (t.getType() == AslLexer.PAR_ASSIGN) return !containsFuncall(t);
+        return !hasRegionClauses(t);
+    }
+
+    private static boolean isParallelConstruct(AslTree t) {
+        return t.getType() == AslLexer.BEGIN_PARALLEL || t.getType() == AslLexer.PAR_ASSIGN;
+    }
+
+    /** Returns the private and first private variables of a parallel region. */
+    private static HashMap<String,Integer> getPrivateVariables(AslTree t) {
+        HashMap<String,Integer> kinds = new HashMap<String,Integer>();
+        for (int i = 0; t.getType() == AslLexer.BEGIN_PARALLEL && i < t.getChildCount(); ++i) {
+            AslTree list = t.getChild(i);
+            if (list.getType() != AslLexer.PRIVATE_VAR && list.getType() != AslLexer.FIRST_PRIVATE_VAR) continue;
+            for (int j = 0; j < list.getChildCount(); ++j) kinds.put(list.getChild(j).getText(), list.getType());
+        }
+        return kinds;
+    }
+
+    /**
+     * Checks that the data-sharing of the statements of a block is kept
+     * when they are fused in a single region. A private or first private
+     * variable of a region must have the same kind in all the statements
+     * using it, and the first private variables can't be modified. The
+     * reductions of a region can't be used outside it, since they are
+     * combined at the end of the fused region.
+     */
+    private boolean canFuseRegions(AslTree block, int from, int to) {
+        HashMap<String,Integer> kinds = new HashMap<String,Integer>();
+        for (int k = from; k <= to; ++k) {
+            HashMap<String,Integer> own = getPrivateVariables(block.getChild(k));
+            for (String name : own.keySet()) {
+                Integer kind = kinds.put(name, own.get(name));
+                if (kind != null && !kind.equals(own.get(name))) return false;
+            }
+        }
+        for (int k = from; k <= to; ++k) {
+            AslTree s = block.getChild(k);
+            HashMap<String,Integer> own = getPrivateVariables(s);
+            HashSet<String> modified = new HashSet<String>();
+            collectModifiedVariables(s, modified);
+            for (String name : kinds.keySet()) {
+                if (!referencesVariable(s, name)) continue;
+                if (!kinds.get(name).equals(own.get(name))) return false;
+                if (own.get(name) == AslLexer.FIRST_PRIVATE_VAR && modified.contains(name)) return false;
+            }
+            if (s.getType() != AslLexer.BEGIN_PARALLEL) continue;
+            for (String name : findReductions(s, true).keySet()) {
+                if (kinds.containsKey(name)) continue;
+                for (int j = from; j <= to; ++j) {
+                    if (j != k && referencesVariable(block.getChild(j), name)) return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Generates consecutive parallel constructs of a block as a single
+     * parallel region, saving the fork and join of the threads. The
+     * statements between them are executed in single constructs. The
+     * barriers at the end of the regions are kept only when the shared
+     * variables accessed conflict with the next part of the region.
+     */
+    private void generateFusedRegions(AslTree block, int from, int to, StringBuilder genCode) throws ParallelException {
+        // the parts of the region: constructs and sequences of serial statements
+        ArrayList<ArrayList<AslTree>> parts = new ArrayList<ArrayList<AslTree>>();
+        for (int k = from; k <= to; ++k) {
+            AslTree s = block.getChild(k);
+            if (isParallelConstruct(s) || isParallelConstruct(block.getChild(k - 1)))
+                parts.add(new ArrayList<AslTree>());
+            parts.get(parts.size() - 1).add(s);
+        }
+
+        inParallelRegion = true;
+        ArrayList<String> firstPrivate = new ArrayList<String>();
+        ArrayList<String> privates = new ArrayList<String>();
+        String lines = "";
+        for (int k = from; k <= to; ++k) {
+            AslTree s = block.getChild(k);
+            if (!isParallelConstruct(s)) continue;
+            lines += (lines.isEmpty() ? "" : ", ") + s.getLine();
+            HashMap<String,Integer> kinds = getPrivateVariables(s);
+            for (String name : kinds.keySet()) {
+                ArrayList<String> list = kinds.get(name) == AslLexer.FIRST_PRIVATE_VAR ? firstPrivate : privates;
+                if (list.contains(name)) continue;
+                Data var = Stack.getVariable(name);
+                if (var.isVector())
+                    throw new RuntimeException ("The arrays in tiny-parallel language can't be privatized");
+                var.setShared(false);
+                list.add(name);
+            }
+        }
+        String header = "#pragma omp parallel default(shared)";
+        if (!firstPrivate.isEmpty()) header += " firstprivate(" + String.join(", ", firstPrivate) + ")";
+        if (!privates.isEmpty()) header += " private(" + String.join(", ", privates) + ")";
+        LinkedHashMap<String,String> reductions = new LinkedHashMap<String,String>();
+        for (ArrayList<AslTree> part : parts) {
+            if (part.get(0).getType() != AslLexer.BEGIN_PARALLEL) continue;
+            LinkedHashMap<String,String> own = findReductions(part.get(0), true);
+            header += generateReductionClauses(own, part.get(0));
+            reductions.putAll(own);
+        }
+        if (verbose) System.err.println ("Note: The parallel constructs of lines " + lines + " are fused in a single region");
+        genCode.append(header + "\n" + xTimesChar(counterSpace) + "{" + "\n");
+        counterSpace += 2;
+        generateOutputBuffer(genCode);
+        int site = isInstrumented() ? getProfileSite("region", block.getChild(from)) : -1;
+        if (site >= 0) genCode.append(xTimesChar(counterSpace) + "double _prof_t = omp_get_wtime();" + "\n");
+
+        // a barrier is needed after a region if the next part conflicts with it
+        int n = parts.size();
+        SharedAccesses[] accesses = new SharedAccesses[n];
+        for (int k = 0; k < n; ++k) {
+            accesses[k] = new SharedAccesses();
+            for (AslTree s : parts.get(k)) accesses[k].addAll(getSharedAccesses(s));
+        }
+        boolean[] barrierAfter = new boolean[n];
+        SharedAccesses segment = new SharedAccesses();
+        for (int k = 0; k < n - 1; ++k) {
+            segment.addAll(accesses[k]);
+            // single and := end with a barrier
+            if (parts.get(k).get(0).getType() != AslLexer.BEGIN_PARALLEL) segment = new SharedAccesses();
+            else if (segment.conflictsWith(accesses[k + 1])) {
+                barrierAfter[k] = true;
+                segment = new SharedAccesses();
+            }
+        }
+
+        redundantBarriers.clear();
+        nowaitLoops.clear();
+        segment = new SharedAccesses();
+        for (int k = 0; k < n; ++k) {
+            AslTree first = parts.get(k).get(0);
+            if (first.getType() == AslLexer.BEGIN_PARALLEL) {
+                AslTree body = first.getChild(first.getChildCount() - 1);
+                SharedAccesses before = new SharedAccesses();
+                before.addAll(segment);
+                findRedundantBarriers(body, before, k == n - 1 || barrierAfter[k]);
+                generateListInstructions(body, genCode);
+            }
+            else if (first.getType() == AslLexer.PAR_ASSIGN) {
+                genCode.append(xTimesChar(counterSpace));
+                generateInstruction(first, genCode);
+            }
+            else {
+                if (bufferedOutput) genCode.append(xTimesChar(counterSpace) + "_flush();" + "\n");
+                genCode.append(xTimesChar(counterSpace) + "#pragma omp single" + "\n");
+                genCode.append(xTimesChar(counterSpace) + "{" + "\n");
+                counterSpace += 2;
+                inNotSyncRegion = true;
+                for (AslTree s : parts.get(k)) {
+                    genCode.append(xTimesChar(counterSpace));
+                    generateInstruction(s, genCode);
+                }
+                if (bufferedOutput) genCode.append(xTimesChar(counterSpace) + "_flush();" + "\n");
+                inNotSyncRegion = false;
+                counterSpace -= 2;
+                genCode.append(xTimesChar(counterSpace) + "}" + "\n");
+            }
+            segment.addAll(accesses[k]);
+            if (first.getType() != AslLexer.BEGIN_PARALLEL) segment = new SharedAccesses();
+            else if (barrierAfter[k]) {
+                genCode.append(xTimesChar(counterSpace) + (bufferedOutput ? "_flush_ordered();" : "#pragma omp barrier") + "\n");
+                segment = new SharedAccesses();
+            }
+        }
+
+        if (bufferedOutput) genCode.append(xTimesChar(counterSpace) + "_flush_ordered();" + "\n");
+        if (site >= 0) genCode.append(xTimesChar(counterSpace) + "_prof_end(" + site + ", _prof_t);" + "\n");
+        counterSpace -= 2;
+        genCode.append(xTimesChar(counterSpace) + "}" + "\n");
+        for (String name : firstPrivate) Stack.getVariable(name).setShared(true);
+        for (String name : privates) Stack.getVariable(name).setShared(true);
+        for (String name : reductions.keySet()) Stack.getVariable(name).setShared(true);
+        inParallelRegion = false;
+    }
+
+    /**
+     * Finds the barriers of a block of parallel code that can be removed,
+     * explicit or at the end of the parallel_for loops (which become
+     * nowait). A barrier is redundant if the code executed since the
+     * previous barrier and the code executed until the next one access
+     * different shared variables, or only read them. The blocks of the
+     * nested statements are analyzed separately, their context being
+     * unknown.
+     * @param before The accesses since the previous barrier.
+     * @param syncedEnd Says if the block ends with a barrier (the end of a parallel region).
+     */
+    private void findRedundantBarriers(AslTree block, SharedAccesses before, boolean syncedEnd) {
+        SharedAccesses segment = before;
+        int n = block.getChildCount();
+        for (int k = 0; k < n; ++k) {
+            AslTree s = block.getChild(k);
+            switch (s.getType()) {
+                case AslLexer.BARRIER:
+                case AslLexer.PARALLEL_FOR:
+                {
+                    if (s.getType() == AslLexer.PARALLEL_FOR) segment.addAll(getSharedAccesses(s));
+                    SharedAccesses after = getAccessesUntilBarrier(block, k + 1, syncedEnd);
+                    if (segment.conflictsWith(after)) {
+                        segment = new SharedAccesses();
+                        break;
+                    }
+                    if (s.getType() == AslLexer.BARRIER) {
+                        redundantBarriers.add(s);
+                        if (verbose) System.err.println ("Note: The barrier of line " + s.getLine() + " is redundant, it is removed");
+                    }
+                    else {
+                        nowaitLoops.add(s);
+                        if (verbose) System.err.println ("Note: The parallel_for of line " + s.getLine() + " doesn't need its final barrier (nowait)");
+                    }
+                    break;
+                }
+                case AslLexer.PAR_ASSIGN:
+                case AslLexer.TASKLOOP:
+                    segment = new SharedAccesses();
+                    break;
+                default:
+                {
+                    for (int i = 0; i < s.getChildCount(); ++i) {
+                        if (s.getChild(i).getType() != AslLexer.INSTR_BLOCK) continue;
+                        SharedAccesses unknown = new SharedAccesses();
+                        unknown.unknown = true;
+                        findRedundantBarriers(s.getChild(i), unknown, false);
+                    }
+                    segment.addAll(getSharedAccesses(s));
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the accesses of the statements of a block from a position
+     * until the next barrier, including the worksharing constructs that
+     * end with a barrier. The code after the block is unknown unless it
+     * ends with a barrier.
+     */
+    private SharedAccesses getAccessesUntilBarrier(AslTree block, int from, boolean syncedEnd) {
+        SharedAccesses accesses = new SharedAccesses();
+        for (int k = from; k < block.getChildCount(); ++k) {
+            AslTree s = block.getChild(k);
+            if (s.getType() == AslLexer.BARRIER) return accesses;
+            accesses.addAll(getSharedAccesses(s));
+            int type = s.getType();
+            if (type == AslLexer.PARALLEL_FOR || type == AslLexer.PAR_ASSIGN || type == AslLexer.TASKLOOP)
+                return accesses;
+        }
+        if (!syncedEnd) accesses.unknown = true;
+        return accesses;
+    }
+
+    /** Returns the shared variables accessed by a statement. */
+    private SharedAccesses getSharedAccesses(AslTree t) {
+        SharedAccesses accesses = new SharedAccesses();
+        collectAccesses(t, accesses);
+        removePrivateVariables(accesses.reads);
+        removePrivateVariables(accesses.writes);
+        return accesses;
+    }
+
+    /** Removes the private variables (the variables declared in the parallel code are not defined yet). */
+    private void removePrivateVariables(HashSet<String> names) {
+        Iterator<String> it = names.iterator();
+        while (it.hasNext()) {
+            String name = it.next();
+            if (!name.equals("_io") && (!Stack.isDefined(name) || !Stack.getVariable(name).isShared()))
+                it.remove();
+        }
+    }
+
+    private void collectAccesses(AslTree t, SharedAccesses accesses) {
+        switch (t.getType()) {
+            case AslLexer.ID:
+                accesses.reads.add(t.getText());
+                return;
+            case AslLexer.ASSIGN:
+            {
+                AslTree identNode = t.getChild(0);
+                if (identNode.getType() == AslLexer.OPENC) {
+                    accesses.writes.add(identNode.getChild(0).getText());
+                    collectAccesses(identNode.getChild(1), accesses);
+                }
+                else accesses.writes.add(identNode.getText());
+                collectAccesses(t.getChild(1), accesses);
+                return;
+            }
+            case AslLexer.PAR_ASSIGN:
+                accesses.writes.add(t.getChild(0).getText());
+                collectAccesses(t.getChild(1), accesses);
+                collectAccesses(t.getChild(2), accesses);
+                return;
+            case AslLexer.READ:
+            case AslLexer.LOAD:
+                accesses.writes.add(t.getChild(0).getText());
+                accesses.writes.add("_io");
+                return;
+            case AslLexer.READALL:
+                accesses.writes.add(t.getChild(0).getText());
+                accesses.writes.add("_io");
+                collectAccesses(t.getChild(1), accesses);
+                return;
+            case AslLexer.STORE:
+                accesses.reads.add(t.getChild(0).getText());
+                accesses.writes.add("_io");
+                return;
+            case AslLexer.WRITE:
+                accesses.writes.add("_io");
+                break;
+            case AslLexer.REDUCTION:
+                accesses.writes.add(t.getChild(1).getText());
+                return;
+            case AslLexer.SCHEDULE:
+                if (t.getChildCount() > 1) collectAccesses(t.getChild(1), accesses);
+                return;
+            case AslLexer.BIND:
+                return;
+            case AslLexer.SPAWN:
+                // the task may run until the next barrier
+                accesses.unknown = true;
+                break;
+            case AslLexer.FUNCALL:
+            {
+                String fname = t.getChild(0).getText();
+                AslTree callee = FuncName2Tree.get(fname);
+                AslTree args = t.getChild(1);
+                for (int i = 0; i < args.getChildCount(); ++i) {
+                    AslTree a = args.getChild(i);
+                    collectAccesses(a, accesses);
+                    if (callee == null || i >= callee.getChild(1).getChildCount() || a.getType() != AslLexer.ID) continue;
+                    AslTree p = callee.getChild(1).getChild(i);
+                    boolean written = p.getChild(0).getType() == AslLexer.PREF ||
+                                      (p.getChildCount() != 1 && writtenParams.get(fname)[i]);
+                    if (written) accesses.writes.add(a.getText());
+                }
+                if (callee != null && performsIO(fname, new HashSet<String>())) accesses.writes.add("_io");
+                return;
+            }
+            default: break;
+        }
+        int n = t.getChildCount();
+        for (int i = 0; i < n; ++i) collectAccesses(t.getChild(i), accesses);
+    }
+
+    /** Checks whether a function (or the functions it calls) reads or writes. */
+    private boolean performsIO(String fname, HashSet<String> visited) {
+        AslTree f = FuncName2Tree.get(fname);
+        if (f == null || !visited.add(fname)) return false;
+        return performsIO(f.getChild(2), visited);
+    }
+
+    private boolean performsIO(AslTree t, HashSet<String> visited) {
+        switch (t.getType()) {
+            case AslLexer.READ:
+            case AslLexer.WRITE:
+            case AslLexer.LOAD:
+            case AslLexer.STORE:
+            case AslLexer.READALL:
+                return true;
+            default: break;
+        }
+        if (t.getType() == AslLexer.FUNCALL && performsIO(t.getChild(0).getText(), visited)) return true;
+        for (int i = 0; i < t.getChildCount(); ++i) {
+            if (performsIO(t.getChild(i), visited)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Declares the output buffer of each thread at the beginning of a
+     * parallel region. The threads write their buffers at the barriers
+     * (in the order of the threads), before the worksharing constructs
+     * and at the end of the tasks, so that the order of the output
+     * respects the synchronization of the program.
+     */
+    private void generateOutputBuffer(StringBuilder genCode) {
+        if (!bufferedOutput) return;
+        genCode.append(xTimesChar(counterSpace) + "ostringstream _buffer;" + "\n");
+        genCode.append(xTimesChar(counterSpace) + "_out = &_buffer;" + "\n");
+    }
+
+    /** Checks whether the parallel regions or the reachable parallel versions of the functions write. */
+    private boolean writesInParallel(HashSet<String> reachable) {
+        for (String version : reachable) {
+            boolean parallel = version.endsWith("$") || version.endsWith("_");
+            if (containsParallelWrite(FuncName2Tree.get(version).getChild(2), parallel)) return true;
+        }
+        return false;
+    }
+
+    private static boolean containsParallelWrite(AslTree t, boolean parallel) {
+        if (t.getType() == AslLexer.WRITE) return parallel;
+        if (t.getType() == AslLexer.BEGIN_PARALLEL) parallel = true;
+        for (int i = 0; i < t.getChildCount(); ++i) {
+            if (containsParallelWrite(t.getChild(i), parallel)) return true;
+        }
+        return false;
+    }
+
+    /** Checks whether the AST has a node of a type. */
+    private static boolean containsNode(AslTree t, int type) {
+        if (t.getType() == type) return true;
+        for (int i = 0; i < t.getChildCount(); ++i) {
+            if (containsNode(t.getChild(i), type)) return true;
+        }
+        return false;
+    }
+
+    /** Checks whether the AST calls a function. */
+    private static boolean containsCall(AslTree t, String fname) {
+        if (t.getType() == AslLexer.FUNCALL && t.getChild(0).getText().equals(fname)) return true;
+        for (int i = 0; i < t.getChildCount(); ++i) {
+            if (containsCall(t.getChild(i), fname)) return true;
+        }
+        return false;
+    }
+
+    /** Checks whether the AST loads, stores or reads a whole vector. */
+    private static boolean containsBulkIO(AslTree t) {
+        int type = t.getType();
+        if (type == AslLexer.LOAD || type == AslLexer.STORE || type == AslLexer.READALL) return true;
+        for (int i = 0; i < t.getChildCount(); ++i) {
+            if (containsBulkIO(t.getChild(i))) return true;
+        }
+        return false;
+    }
+
+    /** Checks whether the AST contains a spawn. */
+    private static boolean containsSpawn(AslTree t) {
+        if (t.getType() == AslLexer.SPAWN) return true;
+        for (int i = 0; i < t.getChildCount(); ++i) {
+            if (containsSpawn(t.getChild(i))) return true;
+        }
+        return false;
+    }
+
+    // Function to generate the header of the for and the for parallel (there is the same, that's why this funcion exists)
+    private void generateHeaderFor(AslTree t, StringBuilder genCode) throws ParallelException{
+        generateHeaderFor(t, "", genCode);
+    }
+
+    /**
+     * Generates the header of a for. The steps (comma separated updates)
+     * are executed after the increment of the loop variable.
+     */
+    private void generateHeaderFor(AslTree t, String steps, StringBuilder genCode) throws ParallelException{
+        
+        genCode.append("for (");
+           	
+        /* header - parte assignation del variant*/
+		
+        String varBoucle = t.getChild(0).getChild(0).getText();
+		
+        Data variant = Stack.getVariable(varBoucle);
+        
+        //case pragma omp critical
+        //we don't want to permit to use a variable with critical in the header of the header of a parallel_for
+		if (variant.isShared() && !inNotSyncRegion && inParallelRegion) 
+		    throw new RuntimeException ("Variant of the header of a parallel_for must be first private / private variable in");
+		
+        if (!variant.isInteger()) throw new RuntimeException ("Variant must be an integer for a boucle for"); 
+		
+        generateAssignment(t.getChild(0), false, genCode);
+		
+        genCode.append(" ; ");
+		
+		
+        /*header - parte increment*/
+        AslTree forCompa = t.getChild(1);
+		
+        if (forCompa.getType() != AslLexer.LE &&
+            forCompa.getType() != AslLexer.LT &&
+            forCompa.getType() != AslLexer.GE &&
+            forCompa.getType() != AslLexer.GT ) throw new RuntimeException ("Must be comparation for a boucle for"); 
+            
+        generateExpression(forCompa, genCode);
+            	
+        genCode.append(" ; ");
+            	  	
+        AslTree forPlus = t.getChild(2);
+		
+        if (forPlus.getType() != AslLexer.ASSIGN)
+		    throw new RuntimeException ("Must be assignation for a boucle for"); 
+        
+        generateAssignment(forPlus, false, genCode);
+        genCode.append(steps);
+        
+        genCode.append(") { \n");
+        counterSpace += 2;
+    }
+     
+    /**
+     * Executes an instruction. 
+     * Non-null results are only returned by "return" statements.
+     * @param t The AST of the instruction.
+     * @return The data returned by the instruction. The data will be
+     * non-null only if a return statement is executed or a block
+     * of instructions executing a return.
+     */
+    private void generateInstruction (AslTree t, StringBuilder genCode) throws ParallelException {
+
+        assert t != null;
+        
+        setLineNumber(t);
+
+        // A big switch for all type of instructions
+        switch (t.getType()) {
+
+            case AslLexer.BEGIN_PARALLEL:
+            {
+                generateParallelZone(t, genCode);
+                return;
+            }
+            
+            case AslLexer.REDUCTION:
+            {
+                return;
+            }
+
+            case AslLexer.BARRIER:
+            {
+                if (redundantBarriers.contains(t) && inParallelRegion) genCode.append("// barrier\n");
+                else if (inParallelRegion && isInstrumented()) {
+                    // the time the threads wait in the barrier
+                    int site = getProfileSite("barrier", t);
+                    genCode.append("{" + "\n");
+                    genCode.append(xTimesChar(counterSpace + 2) + "double _prof_t = omp_get_wtime();" + "\n");
+                    genCode.append(xTimesChar(counterSpace + 2) + (bufferedOutput ? "_flush_ordered();" : "#pragma omp barrier") + "\n");
+                    genCode.append(xTimesChar(counterSpace + 2) + "_prof_end(" + site + ", _prof_t);" + "\n");
+                    genCode.append(xTimesChar(counterSpace) + "}" + "\n");
+                }
+                else if (inParallelRegion) genCode.append(bufferedOutput ? "_flush_ordered();\n" : "#pragma omp barrier\n");
+                else 
+                {
+                    genCode.append("\r");
+                    System.err.print ("Note: Using a barrier outside a parallel region is useless:"+ lineNumber() + "\n");
+                }
+                return;
+            }
+
+            case AslLexer.SPAWN:
+            {
+                AslTree callNode = t.getChild(0);
+                if (!inParallelRegion) {
+                    System.err.print ("Note: Using a spawn outside a parallel region is a function call:"+ lineNumber() + "\n");
+                    generateFuncall(callNode, genCode);
+                    genCode.append(";\n");
+                    return;
+                }
+                String fname = callNode.getChild(0).getText();
+                if (hashBuiltinFunc.containsKey(fname))
+                    throw new RuntimeException ("The builtin function " + fname + " can't be spawned:" + lineNumber());
+                if (containsWorksharing(fname, new HashSet<String>()))
+                    throw new ParallelException ("The spawned function " + fname + " contains worksharing constructs or barriers");
+
+                String clauses = generateTaskClauses(callNode);
+                // the output of the task follows the output of its creator
+                boolean taskWrites = bufferedOutput && performsIO(fname, new HashSet<String>());
+                if (bufferedOutput) genCode.append("_flush();" + "\n" + xTimesChar(counterSpace));
+                if (taskDepth > 0) {
+                    // the depth of the new task is captured when it is created,
+                    // and made current on the thread that executes it
+                    genCode.append("{" + "\n");
+                    counterSpace += 2;
+                    genCode.append(xTimesChar(counterSpace) + "int _depth = _task_depth + 1;" + "\n");
+                    genCode.append(xTimesChar(counterSpace) + "#pragma omp task final(_depth >= " + taskDepth + ")" + clauses + "\n");
+                    genCode.append(xTimesChar(counterSpace) + "{" + "\n");
+                    counterSpace += 2;
+                    genCode.append(xTimesChar(counterSpace) + "int _parent = _task_depth;" + "\n");
+                    genCode.append(xTimesChar(counterSpace) + "_task_depth = _depth;" + "\n");
+                    genCode.append(xTimesChar(counterSpace));
+                    generateFuncall(callNode, genCode);
+                    genCode.append(";" + "\n");
+                    if (taskWrites) genCode.append(xTimesChar(counterSpace) + "_flush();" + "\n");
+                    genCode.append(xTimesChar(counterSpace) + "_task_depth = _parent;" + "\n");
+                    counterSpace -= 2;
+                    genCode.append(xTimesChar(counterSpace) + "}" + "\n");
+                    counterSpace -= 2;
+                    genCode.append(xTimesChar(counterSpace) + "}" + "\n");
+                }
+                else if (taskWrites) {
+                    genCode.append("#pragma omp task" + clauses + "\n" + xTimesChar(counterSpace) + "{" + "\n");
+                    genCode.append(xTimesChar(counterSpace + 2));
+                    generateFuncall(callNode, genCode);
+                    genCode.append(";" + "\n");
+                    genCode.append(xTimesChar(counterSpace + 2) + "_flush();" + "\n");
+                    genCode.append(xTimesChar(counterSpace) + "}" + "\n");
+                }
+                else {
+                    genCode.append("#pragma omp task" + clauses + "\n" + xTimesChar(counterSpace));
+                    generateFuncall(callNode, genCode);
+                    genCode.append(";" + "\n");
+                }
+                return;
+            }
+
+            case AslLexer.SYNC:
+            {
+                if (inParallelRegion) genCode.append("#pragma omp taskwait\n");
+                else {
+                    genCode.append("// sync\n");
+                    System.err.print ("Note: Using a sync outside a parallel region is useless:"+ lineNumber() + "\n");
+                }
+                return;
             }
 
             case AslLexer.NOT_SYNC:
@@ -728,38 +3284,7 @@ public class Interp {
             // Assignment
             case AslLexer.ASSIGN:
             {
-                //The following call is used only for existance check
-                AslTree identNode = t.getChild(0);
-                AslTree exprNode = t.getChild(1);
-                Data toChange;
-                
-                if (identNode.getType() != AslLexer.OPENC) {
-                    toChange = Stack.getVariable(identNode.getText());
-                    if (toChange.isVector())
-                        throw new RuntimeException ("Error: A vector can be accessed only using vector_id[element] :" + t.getLine());
-
-                    if (toChange.isShared() && !inNotSyncRegion && inParallelRegion)
-                        genCode.append("#pragma omp critical" + "\n" + xTimesChar(counterSpace));
-                    genCode.append(identNode.getText() + " = ");
-                }
-                
-                else {
-                    toChange = Stack.getVariable(identNode.getChild(0).getText());
-                    checkVector(toChange);
-                    
-                    if (toChange.isShared() && !inNotSyncRegion && inParallelRegion)
-                        genCode.append("#pragma omp critical" + "\n" + xTimesChar(counterSpace));
-                    
-                    genCode.append(identNode.getChild(0).getText() + "[");
-                    Data vectorIndex = generateExpression(identNode.getChild(1), genCode);
-                    genCode.append("] = ");
-
-                }
-                Data value = generateExpression(exprNode, genCode);
-
-                if (!value.getType().equals(toChange.getType()))
-                    throw new RuntimeException ("Right hand side expression doesn't have the same typeas the left hand side variable");
-
+                generateAssignment(t, true, genCode);
                 return;
             }
             
@@ -774,13 +3299,26 @@ public class Interp {
                 if (inParallelRegion) value.setShared(false);
 
                 if (identNode.getType() == AslLexer.OPENC) {
-                    String vectorType = "vector<" + typeNode.getText() + "> ";
-                    genCode.append( vectorType + identNode.getChild(0).getText());
-                    genCode.append(" = * new " + vectorType + "(");
+                    String vectorName = identNode.getChild(0).getText();
+                    genCode.append(vectorType(typeNode.getText()) + " " + vectorName + "(");
                     Data vectorIndex = generateExpression(identNode.getChild(1), genCode);
-                    genCode.append(", 0);" + "\n"); //it fills all declared vectors with zeros
                     
                     checkInteger(vectorIndex);
+
+                    // the elements of bool vectors share words, so they can't be touched in parallel
+                    boolean firstTouch = allocMode == AllocMode.FIRSTTOUCH && !inParallelRegion &&
+                                         typeNode.getType() == AslLexer.INT;
+                    if (allocMode == AllocMode.UNINIT || firstTouch)
+                        genCode.append(");" + "\n");
+                    else
+                        genCode.append(", 0);" + "\n"); //it fills the vector with zeros
+
+                    if (firstTouch) {
+                        // each thread zeroes (and maps) the pages of its static chunk
+                        genCode.append(xTimesChar(counterSpace) + "#pragma omp parallel for schedule(static)" + "\n");
+                        genCode.append(xTimesChar(counterSpace) + "for (int _i = 0; _i < (int) " + vectorName + ".size(); ++_i) ");
+                        genCode.append(vectorName + "[_i] = 0;" + "\n");
+                    }
                     
                     value.setVector();
                     Stack.defineVariable (identNode.getChild(0).getText(), value);
@@ -829,8 +3367,46 @@ public class Interp {
     
             case AslLexer.FOR:
             {
+                //the clauses follow the for header (assign, expr, assign) and the body
+                AslTree tileNode = null;
+                AslTree simdNode = null;
+                for (int i = 4; i < t.getChildCount(); ++i) {
+                    AslTree clauseNode = t.getChild(i);
+                    if (tileNode != null || simdNode != null)
+                        throw new RuntimeException ("A for can have only one tile or simd clause:" + lineNumber());
+                    if (clauseNode.getType() == AslLexer.TILE) tileNode = clauseNode;
+                    else simdNode = clauseNode;
+                }
+
+                if (autoParallel && !inParallelRegion && !inAutoParallelLoop && tileNode == null &&
+                    simdNode == null && generateAutoParallelLoop(t, genCode))
+                    return;
+
+                // the inner loops of a collapsed nest can't be in a block
+                ArrayList<String> views = new ArrayList<String>();
+                if (!canonicalLoops.contains(t)) views = generateRestrictViews(t, genCode);
+
+                if (tileNode != null) {
+                    generateTiledLoops(t, tileNode, genCode);
+                    closeRestrictViews(views, genCode);
+                    return;
+                }
+
+                boolean hasViews = false;
+                if (simdNode != null) {
+                    hasViews = generateAlignedViews(simdNode, genCode);
+                    genCode.append("#pragma omp simd" + generateSimdClauses(simdNode));
+                    genCode.append(checkSimdLoop(t, null) + "\n" + xTimesChar(counterSpace));
+                }
+
+                // the simd loops and the collapsed ones must stay canonical
+                StringBuilder steps = new StringBuilder();
+                ArrayList<AslTree> offsets = new ArrayList<AslTree>();
+                if (simdNode == null && !canonicalLoops.contains(t))
+                    offsets = generateIndexOffsets(t, steps, genCode);
+
                 //header
-                generateHeaderFor(t, genCode);
+                generateHeaderFor(t, steps.toString(), genCode);
             	
 
             	//instructions in the for
@@ -838,6 +3414,13 @@ public class Interp {
                 
             	counterSpace -= 2;           	
                 genCode.append(xTimesChar(counterSpace) +"} \n");
+                if (!offsets.isEmpty()) {
+                    for (AslTree index : offsets) indexOffsets.remove(index);
+                    counterSpace -= 2;
+                    genCode.append(xTimesChar(counterSpace) + "}" + "\n");
+                }
+                if (hasViews) closeAlignedViews(genCode);
+                closeRestrictViews(views, genCode);
             	return;
 
             }
@@ -849,36 +3432,204 @@ public class Interp {
                 //test error if you are not yet in a parallel zone               
                 
                 if(!inParallelRegion) throw new ParallelException(); 
+
+                // the output written before the final barrier is flushed before it
+                boolean bodyWrites = bufferedOutput && performsIO(t.getChild(3), new HashSet<String>());
+                if (bufferedOutput && !bodyWrites && !nowaitLoops.contains(t))
+                    genCode.append("_flush();" + "\n" + xTimesChar(counterSpace));
+
+                // the final barrier of a profiled loop is explicit, to measure the time the threads wait in it
+                int site = isInstrumented() ? getProfileSite("parallel_for", t) : -1;
+                if (site >= 0) {
+                    genCode.append("{" + "\n");
+                    counterSpace += 2;
+                    genCode.append(xTimesChar(counterSpace) + "double _prof_t = omp_get_wtime();" + "\n");
+                    genCode.append(xTimesChar(counterSpace) + "long long _prof_iters = 0;" + "\n" + xTimesChar(counterSpace));
+                }
                       
+                AslTree simdNode = null;
+                for (int i = 4; i < t.getChildCount(); ++i) {
+                    if (t.getChild(i).getType() == AslLexer.SIMD) simdNode = t.getChild(i);
+                }
+                int distributed = getDistributedLoops(t);
+                // the disjoint vectors are not synchronized, so they can be restricted and vectorized
+                HashSet<String> outerDisjoint = disjointVectors;
+                disjointVectors = findDisjointWrites(t, distributed);
+                if (needsEntryBarrier(t))
+                    genCode.append((bufferedOutput ? "_flush_ordered();" : "#pragma omp barrier") + "\n" + xTimesChar(counterSpace));
+                ArrayList<String> views = generateRestrictViews(t, genCode);
+                boolean hasViews = simdNode != null && generateAlignedViews(simdNode, genCode);
+
                 //print del pragma
                 genCode.append("#pragma omp for");
+                if (simdNode != null) genCode.append(" simd");
                 counterSpace += 2;
                 
-                if (t.getChildCount() == 5) {
-                    AslTree reductionNode = t.getChild(4); //assuming that in the for header
-                    //there are 3 more nodes-> assign, expr, assign
-                    genCode.append(" reduction(" + reductionNode.getChild(0).getText() + ":");
-                    genCode.append(reductionNode.getChild(1).getText());
-                    Data reductedVariable = Stack.getVariable(reductionNode.getChild(1).getText());
-                    if (!reductedVariable.isShared())
-                        throw new RuntimeException ("The reducted variable "+ reductionNode.getChild(1).getText() +" should be shared before parallel for:" + lineNumber());
-                    reductedVariable.setShared(false);
-                    genCode.append(")");
-                } 
+                //the clauses follow the for header (assign, expr, assign) and the body
+                boolean hasSchedule = false;
+                boolean hasCollapse = false;
+                AslTree tileNode = null;
+                for (int i = 4; i < t.getChildCount(); ++i) {
+                    AslTree clauseNode = t.getChild(i);
+                    switch (clauseNode.getType()) {
+                        case AslLexer.REDUCTION:
+                        {
+                            genCode.append(" reduction(" + clauseNode.getChild(0).getText() + ":");
+                            genCode.append(clauseNode.getChild(1).getText());
+                            Data reductedVariable = Stack.getVariable(clauseNode.getChild(1).getText());
+                            if (!reductedVariable.isShared())
+                                throw new RuntimeException ("The reducted variable "+ clauseNode.getChild(1).getText() +" should be shared before parallel for:" + lineNumber());
+                            reductedVariable.setShared(false);
+                            genCode.append(")");
+                            break;
+                        }
+                        case AslLexer.SCHEDULE:
+                        {
+                            if (hasSchedule)
+                                throw new RuntimeException ("A parallel_for can have only one schedule clause:" + lineNumber());
+                            hasSchedule = true;
+                            generateScheduleClause(clauseNode, genCode);
+                            break;
+                        }
+                        case AslLexer.COLLAPSE:
+                        {
+                            if (tileNode != null || hasCollapse)
+                                throw new RuntimeException ("A parallel_for can have only one collapse or tile clause:" + lineNumber());
+                            hasCollapse = true;
+                            int depth = clauseNode.getChild(0).getIntValue();
+                            checkPerfectNest(t, depth);
+                            if (depth > 1) genCode.append(" collapse(" + depth + ")");
+                            break;
+                        }
+                        case AslLexer.SIMD:
+                        {
+                            if (clauseNode != simdNode)
+                                throw new RuntimeException ("A parallel_for can have only one simd clause:" + lineNumber());
+                            genCode.append(generateSimdClauses(clauseNode));
+                            break;
+                        }
+                        case AslLexer.TILE:
+                        {
+                            if (tileNode != null || hasCollapse)
+                                throw new RuntimeException ("A parallel_for can have only one collapse or tile clause:" + lineNumber());
+                            if (simdNode != null)
+                                throw new RuntimeException ("A tiled parallel_for can't be a simd loop:" + lineNumber());
+                            tileNode = clauseNode;
+                            // all the tile loops are distributed
+                            if (tileNode.getChildCount() > 1) genCode.append(" collapse(" + tileNode.getChildCount() + ")");
+                            break;
+                        }
+                        default: assert false; // Should never happen
+                    }
+                }
+                if (!hasSchedule && defaultSchedule != null)
+                    genCode.append(" schedule(" + defaultSchedule + ")");
+                // accumulations into shared variables become reductions of the loop
+                LinkedHashMap<String,String> reductions = findReductions(t, true);
+                genCode.append(generateReductionClauses(reductions, t));
+                if (simdNode != null) genCode.append(checkSimdLoop(t, reductions));
+                if (nowaitLoops.contains(t) || bodyWrites || site >= 0) genCode.append(" nowait");
                 genCode.append("\n");
                 //gestion de private/shared by instructions/expressiones
                 
                 /*Header del for*/
                 genCode.append(xTimesChar(counterSpace));
+                if (tileNode != null) {
+                    generateTiledLoops(t, tileNode, genCode);
+                }
+                else {
+                    generateHeaderFor(t, genCode);
+                    // the iterations of the collapsed and simd loops are not counted
+                    if (site >= 0 && distributed == 1 && simdNode == null)
+                        genCode.append(xTimesChar(counterSpace) + "++_prof_iters;" + "\n");
+                    /*Cuerpo del for*/
+                    generateListInstructions(t.getChild(3), genCode); //I don't understand how can it be the third
+                    counterSpace -= 2;
+                    genCode.append(xTimesChar(counterSpace) +"} \n");
+                }
+                counterSpace -= 2;
+                disjointVectors = outerDisjoint;
+                if (hasViews) closeAlignedViews(genCode);
+                closeRestrictViews(views, genCode);
+                if (site >= 0) genCode.append(xTimesChar(counterSpace) + "_prof_loop(" + site + ", _prof_t, _prof_iters);" + "\n");
+                if ((bodyWrites || site >= 0) && !nowaitLoops.contains(t)) {
+                    if (site >= 0) genCode.append(xTimesChar(counterSpace) + "_prof_t = omp_get_wtime();" + "\n");
+                    genCode.append(xTimesChar(counterSpace) + (bodyWrites ? "_flush_ordered();" : "#pragma omp barrier") + "\n");
+                    if (site >= 0) genCode.append(xTimesChar(counterSpace) + "_prof_wait(" + site + ", _prof_t);" + "\n");
+                }
+                if (site >= 0) {
+                    counterSpace -= 2;
+                    genCode.append(xTimesChar(counterSpace) + "}" + "\n");
+                }
+                for (String name : reductions.keySet()) Stack.getVariable(name).setShared(true);
+                return;
+            }
+            
+            // Loop whose iterations are distributed in tasks
+            case AslLexer.TASKLOOP:
+            {
+                if(!inParallelRegion) throw new ParallelException(); 
+
+                // a single thread creates the tasks, executed by the whole team
+                if (bufferedOutput) genCode.append("_flush();" + "\n" + xTimesChar(counterSpace));
+                genCode.append("#pragma omp single" + "\n" + xTimesChar(counterSpace));
+                genCode.append("#pragma omp taskloop");
+                if (grainSize > 0) genCode.append(" grainsize(" + grainSize + ")");
+                // the vectors and references would be copied by default
+                ArrayList<String> shared = new ArrayList<String>();
+                collectTaskCaptures(t, new ArrayList<String>(), shared, new HashSet<String>());
+                // accumulations into shared variables become reductions of the taskloop
+                LinkedHashMap<String,String> reductions = findReductions(t, true);
+                LinkedHashMap<String,String> explicitReductions = new LinkedHashMap<String,String>();
+                int depth = 1;
+                boolean hasCollapse = false;
+                for (int i = 4; i < t.getChildCount(); ++i) {
+                    AslTree clauseNode = t.getChild(i);
+                    switch (clauseNode.getType()) {
+                        case AslLexer.REDUCTION:
+                        {
+                            String name = clauseNode.getChild(1).getText();
+                            if (!Stack.getVariable(name).isShared())
+                                throw new RuntimeException ("The reducted variable " + name + " should be shared before taskloop:" + lineNumber());
+                            reductions.remove(name);
+                            explicitReductions.put(name, clauseNode.getChild(0).getText());
+                            break;
+                        }
+                        case AslLexer.COLLAPSE:
+                        {
+                            if (hasCollapse)
+                                throw new RuntimeException ("A taskloop can have only one collapse clause:" + lineNumber());
+                            hasCollapse = true;
+                            depth = clauseNode.getChild(0).getIntValue();
+                            checkPerfectNest(t, depth);
+                            break;
+                        }
+                        default:
+                            throw new RuntimeException ("A taskloop only accepts collapse and reduction clauses:" + lineNumber());
+                    }
+                }
+                shared.removeAll(reductions.keySet());
+                shared.removeAll(explicitReductions.keySet());
+                if (!shared.isEmpty()) genCode.append(" shared(" + String.join(", ", shared) + ")");
+                if (depth > 1) genCode.append(" collapse(" + depth + ")");
+                for (String name : explicitReductions.keySet()) {
+                    genCode.append(" reduction(" + explicitReductions.get(name) + ":" + name + ")");
+                    Stack.getVariable(name).setShared(false);
+                }
+                genCode.append(generateReductionClauses(reductions, t));
+                genCode.append("\n" + xTimesChar(counterSpace));
                 generateHeaderFor(t, genCode);
-                /*Cuerpo del for*/
-                generateListInstructions(t.getChild(3), genCode); //I don't understand how can it be the third
+                generateListInstructions(t.getChild(3), genCode);
+                for (String name : reductions.keySet()) Stack.getVariable(name).setShared(true);
+                for (String name : explicitReductions.keySet()) Stack.getVariable(name).setShared(true);
+                // each iteration is a task that may run in any thread
+                if (bufferedOutput && performsIO(t.getChild(3), new HashSet<String>()))
+                    genCode.append(xTimesChar(counterSpace) + "_flush();" + "\n");
                 counterSpace -= 2;
                 genCode.append(xTimesChar(counterSpace) +"} \n");
-                counterSpace -= 2;
                 return;
             }
-            
+
             // Parallel for statement 
             case AslLexer.PAR_ASSIGN:
             {
@@ -888,37 +3639,73 @@ public class Interp {
                  counterSpace += 2;
                  genCode.append(xTimesChar(counterSpace));
                 }
+                else if (bufferedOutput) genCode.append("_flush();" + "\n" + xTimesChar(counterSpace));
                 
-                //The following call is used only for existance check - verification that for the variables used in the assign are Vectors
+                //The following call is used only for existance check - verification that the assigned variable is a Vector
                 AslTree id0Node = t.getChild(0);
-               
-                AslTree id1Node = t.getChild(1);
                 
+                AslTree exprNode = t.getChild(1);
+               
                 AslTree expr = t.getChild(2);
                
-                Data toChange0;
-                Data toChange1;
-                toChange0 = Stack.getVariable(id0Node.getText());
+                Data toChange0 = Stack.getVariable(id0Node.getText());
                 checkVector(toChange0);
-                toChange1 = Stack.getVariable(id1Node.getText());
-                checkVector(toChange1);
-                
-               // Check if the vectors are of the same type
-                if (toChange0.getType() == (toChange1.getType()))
-                    throw new RuntimeException ("Type of the both vectors mismatch");
-                    
-                 genCode.append("#pragma omp for\n");
-                 counterSpace += 2;
-                 genCode.append(xTimesChar(counterSpace) + "for (int _i = 0 ; _i < ");
+                if (containsFuncall(exprNode))
+                    throw new RuntimeException ("The expression of a := can't call functions:" + lineNumber());
+
+                // the elements of bool vectors share words, so a single thread writes them
+                boolean single = !toChange0.isInteger();
+                String target = id0Node.getText();
+
+                if (exprNode.getType() == AslLexer.ID && Stack.getVariable(exprNode.getText()).isVector()) {
+                    // Check if the vectors are of the same type
+                    if (!toChange0.getType().equals(Stack.getVariable(exprNode.getText()).getType()))
+                        throw new RuntimeException ("Type of the both vectors mismatch");
+
+                    // each thread copies a contiguous chunk
+                    String source = exprNode.getText();
+                    genCode.append("{" + "\n");
+                    counterSpace += 2;
+                    genCode.append(xTimesChar(counterSpace) + "int _n = std::max(");
+                    checkInteger(generateExpression(expr, genCode));
+                    genCode.append(", 0);" + "\n");
+                    if (single) {
+                        genCode.append(xTimesChar(counterSpace) + "#pragma omp single" + "\n");
+                        genCode.append(xTimesChar(counterSpace) + "std::copy(" + source + ".begin(), " + source + ".begin() + _n, " + target + ".begin());" + "\n");
+                    }
+                    else {
+                        genCode.append(xTimesChar(counterSpace) + "int _lo = (long long) _n * omp_get_thread_num() / omp_get_num_threads();" + "\n");
+                        genCode.append(xTimesChar(counterSpace) + "int _hi = (long long) _n * (omp_get_thread_num() + 1) / omp_get_num_threads();" + "\n");
+                        genCode.append(xTimesChar(counterSpace) + "std::copy(" + source + ".begin() + _lo, " + source + ".begin() + _hi, " + target + ".begin() + _lo);" + "\n");
+                    }
+                    counterSpace -= 2;
+                    genCode.append(xTimesChar(counterSpace) + "}" + "\n");
+                    // the single construct and the end of the region already wait
+                    if (!single && inParallelRegion) genCode.append(xTimesChar(counterSpace) + "#pragma omp barrier" + "\n");
+                }
+                else {
+                    // elementwise operation: the vectors of the expression denote their elements
+                    AslTree index = new AslTree(AslLexer.ID, "_i", exprNode);
+                    AslTree element = getElementExpression(exprNode, index);
+                    genCode.append(single ? "#pragma omp single\n" : "#pragma omp for simd\n");
+                    counterSpace += 2;
+                    genCode.append(xTimesChar(counterSpace) + "for (int _i = 0 ; _i < ");
                 
-                 generateExpression(expr,genCode);
+                    checkInteger(generateExpression(expr, genCode));
                  
-                 genCode.append(" ; _i = _i + 1) { \n");
-                 counterSpace += 2;
-                 genCode.append(xTimesChar(counterSpace) + id0Node.getText() + "[_i] = " + id1Node.getText() + "[_i]; \n" );
-                 counterSpace -= 2;
-                 genCode.append(xTimesChar(counterSpace) +"} \n");
-                 counterSpace -= 2;
+                    genCode.append(" ; _i = _i + 1) { \n");
+                    counterSpace += 2;
+                    genCode.append(xTimesChar(counterSpace) + target + "[_i] = ");
+                    indexOffsets.put(index, "_i");
+                    Data value = generateExpression(element, genCode);
+                    indexOffsets.remove(index);
+                    if (!value.getType().equals(toChange0.getType()))
+                        throw new RuntimeException ("Right hand side expression doesn't have the same type as the elements of " + target);
+                    genCode.append("; \n");
+                    counterSpace -= 2;
+                    genCode.append(xTimesChar(counterSpace) +"} \n");
+                    counterSpace -= 2;
+                }
                  
                  // to close the parallel region opened before
                  if(!inParallelRegion){
@@ -932,12 +3719,15 @@ public class Interp {
             // Return statement
             case AslLexer.RETURN:
             {
-                if (t.getChildCount() != 0) {
-                    genCode.append("return ");
-                    generateExpression(t.getChild(0), genCode);
-                    genCode.append(";" + "\n");
-                }
-                return; // No expression: returns void data
+                // the spawned tasks can use the variables of the function
+                if (hasSpawns && inParallelRegion)
+                    genCode.append("#pragma omp taskwait" + "\n" + xTimesChar(counterSpace));
+                genCode.append("return ");
+                // No expression: the value of the function is not used
+                if (t.getChildCount() != 0) generateExpression(t.getChild(0), genCode);
+                else genCode.append("0");
+                genCode.append(";" + "\n");
+                return;
             }
             
             // Read statement: reads a variable and raises an exception
@@ -948,17 +3738,26 @@ public class Interp {
                 genCode.append("cin >> "+ varName + ";" + "\n");
                 return;
 
+            // Bulk input/output of a vector
+            case AslLexer.LOAD:
+            case AslLexer.STORE:
+            case AslLexer.READALL:
+                generateBulkIO(t, genCode);
+                return;
+
             // Write statement: it can write an expression or a string.
+            // In parallel code, it is written in the buffer of the thread.
             case AslLexer.WRITE:
                 AslTree v = t.getChild(0);
+                String stream = inParallelRegion && bufferedOutput ? "*_out" : "cout";
                 // Special case for strings
                 if (v.getType() == AslLexer.STRING) {
-                    genCode.append("cout << " + v.getText() + ";" + "\n");
+                    genCode.append(stream + " << " + v.getText() + ";" + "\n");
                     return;
                 }
                 else {
                     // Write an expression
-                    genCode.append("cout << ");
+                    genCode.append(stream + " << ");
                     generateExpression(v, genCode);
                     genCode.append(";" + "\n");
                     return;
@@ -981,6 +3780,448 @@ public class Interp {
 
 
 
+    /**
+     * Generates the bulk input/output of an int vector. load and store
+     * transfer the whole vector from/to a binary file, and readall reads
+     * the given number of elements of the input. The helpers of the
+     * generated code are parallel (see generateBulkIOHelpers), so they
+     * can't be used in parallel regions.
+     */
+    private void generateBulkIO(AslTree t, StringBuilder genCode) throws ParallelException {
+        String name = t.getChild(0).getText();
+        if (inParallelRegion)
+            throw new ParallelException ("The vector " + name + " can't be loaded, stored or read in a parallel region");
+        Data vector = Stack.getVariable(name);
+        if (!vector.isVector() || !vector.isInteger())
+            throw new RuntimeException ("Only int vectors can be loaded, stored or read with readall:" + lineNumber());
+        switch (t.getType()) {
+            case AslLexer.LOAD:
+                genCode.append("_load(" + name + ", " + t.getChild(1).getText() + ");" + "\n");
+                break;
+            case AslLexer.STORE:
+                genCode.append("_store(" + name + ", " + t.getChild(1).getText() + ");" + "\n");
+                break;
+            default:
+                genCode.append("_readall(" + name + ", ");
+                checkInteger(generateExpression(t.getChild(1), genCode));
+                genCode.append(");" + "\n");
+                break;
+        }
+    }
+
+    /**
+     * Generates an assignment. When it is a statement, the assignment is
+     * terminated and, if the target is shared inside a synchronized
+     * parallel region, protected by an atomic construct, a critical section
+     * or, for int vector elements in STRIPED mode, a lock of the striped table.
+     * Assignments in the header of a for are never synchronized.
+     * @param t The AST of the assignment.
+     * @param isStatement Says if the assignment is a statement or part of a for header.
+     */
+    private void generateAssignment(AslTree t, boolean isStatement, StringBuilder genCode) {
+        setLineNumber(t);
+        //The following call is used only for existance check
+        AslTree identNode = t.getChild(0);
+        AslTree exprNode = t.getChild(1);
+        boolean isVectorElem = identNode.getType() == AslLexer.OPENC;
+        String varName = isVectorElem ? identNode.getChild(0).getText() : identNode.getText();
+        Data toChange = Stack.getVariable(varName);
+
+        if (!isVectorElem && toChange.isVector())
+            throw new RuntimeException ("Error: A vector can be accessed only using vector_id[element] :" + t.getLine());
+        if (isVectorElem)
+            checkVector(toChange);
+
+        // each iteration of the parallel_for writes different elements
+        boolean disjoint = isVectorElem && disjointVectors.contains(varName);
+
+        SyncKind sync = SyncKind.NONE;
+        if (isStatement && toChange.isShared() && !inNotSyncRegion && inParallelRegion && !disjoint)
+            sync = getSyncKind(identNode, exprNode);
+
+        // the elements of bool vectors are bits, which can't be accessed atomically
+        if (sync != SyncKind.NONE && isVectorElem && !toChange.isInteger())
+            sync = SyncKind.CRITICAL;
+
+        // Atomic constructs don't exclude critical sections, so a variable
+        // protected somewhere by a lock must always be protected by it.
+        String lockName = getLockName(varName, toChange.isReference());
+        if (sync != SyncKind.NONE && lockedTargets.contains(getLockKey(lockName)))
+            sync = SyncKind.CRITICAL;
+
+        // neighbouring elements of bool vectors share a word, so they can't take different locks
+        boolean striped = sync == SyncKind.CRITICAL && lockMode == LockMode.STRIPED && isVectorElem && toChange.isInteger();
+        String index = null;
+
+        // the time of the critical section includes the time waiting for it
+        int site = isInstrumented() && sync == SyncKind.CRITICAL ? getProfileSite("critical", t) : -1;
+        if (site >= 0) {
+            genCode.append("{" + "\n");
+            counterSpace += 2;
+            genCode.append(xTimesChar(counterSpace) + "double _prof_t = omp_get_wtime();" + "\n" + xTimesChar(counterSpace));
+        }
+
+        switch (sync) {
+            case ATOMIC_UPDATE: genCode.append("#pragma omp atomic" + "\n" + xTimesChar(counterSpace)); break;
+            case ATOMIC_WRITE: genCode.append("#pragma omp atomic write" + "\n" + xTimesChar(counterSpace)); break;
+            case CRITICAL:
+                if (striped) {
+                    // the index is evaluated only once, outside the lock
+                    genCode.append("{" + "\n");
+                    counterSpace += 2;
+                    genCode.append(xTimesChar(counterSpace) + "int _idx = ");
+                    checkInteger(generateExpression(identNode.getChild(1), genCode));
+                    genCode.append(";" + "\n" + xTimesChar(counterSpace));
+                    genCode.append("omp_set_lock(&_locks[_idx % " + lockStripes + "]);" + "\n" + xTimesChar(counterSpace));
+                    index = "_idx";
+                }
+                else if (lockMode == LockMode.GLOBAL)
+                    genCode.append("#pragma omp critical" + "\n" + xTimesChar(counterSpace));
+                else
+                    genCode.append("#pragma omp critical(" + lockName + ")" + "\n" + xTimesChar(counterSpace));
+                break;
+            default: break;
+        }
+
+        if (!isVectorElem) {
+            genCode.append(varName + " = ");
+        }
+        else if (index != null) {
+            genCode.append(getVectorAccess(varName) + "[" + index + "] = ");
+        }
+        else {
+            genCode.append(getVectorAccess(varName) + "[");
+            Data vectorIndex = generateExpression(identNode.getChild(1), genCode);
+            checkInteger(vectorIndex);
+            genCode.append("] = ");
+        }
+
+        Data value;
+        if (sync == SyncKind.ATOMIC_UPDATE)
+            value = generateAtomicUpdate(identNode, exprNode, genCode);
+        else
+            value = generateExpression(exprNode, genCode);
+
+        if (!value.getType().equals(toChange.getType()))
+            throw new RuntimeException ("Right hand side expression doesn't have the same typeas the left hand side variable");
+
+        if (striped) {
+            genCode.append(";" + "\n" + xTimesChar(counterSpace));
+            genCode.append("omp_unset_lock(&_locks[_idx % " + lockStripes + "]);" + "\n");
+            counterSpace -= 2;
+            genCode.append(xTimesChar(counterSpace) + "}" + "\n");
+        }
+        else if (isStatement) {
+            genCode.append(";" + "\n");
+        }
+        if (site >= 0) {
+            genCode.append(xTimesChar(counterSpace) + "_prof_end(" + site + ", _prof_t);" + "\n");
+            counterSpace -= 2;
+            genCode.append(xTimesChar(counterSpace) + "}" + "\n");
+        }
+    }
+
+    /**
+     * Returns the name of the critical section protecting a shared variable.
+     * Variables that may be aliased (parameters passed by reference and local
+     * variables passed by reference to other functions) share the same name,
+     * since the same data can be reached through different identifiers.
+     */
+    private String getLockName(String varName, boolean isReference) {
+        if (isReference || escapingVars.contains(varName)) return "_ref";
+        return varName;
+    }
+
+    /** Returns the key of a lock name in the set of locked targets. */
+    private String getLockKey(String lockName) {
+        if (lockName.equals("_ref")) return lockName;
+        return currentFunction + ":" + lockName;
+    }
+
+    /**
+     * Returns the local variables of a function that are passed as arguments
+     * to parameters by reference (vectors are always passed by reference).
+     */
+    private HashSet<String> getEscapingVars(AslTree t) {
+        HashSet<String> vars = new HashSet<String>();
+        collectEscapingVars(t, vars);
+        return vars;
+    }
+
+    private void collectEscapingVars(AslTree t, HashSet<String> vars) {
+        if (t.getType() == AslLexer.FUNCALL) {
+            AslTree callee = FuncName2Tree.get(t.getChild(0).getText());
+            AslTree args = t.getChild(1);
+            if (callee != null) {
+                AslTree params = callee.getChild(1);
+                for (int i = 0; i < args.getChildCount() && i < params.getChildCount(); ++i) {
+                    AslTree p = params.getChild(i);
+                    boolean byReference = p.getChild(0).getType() == AslLexer.PREF || p.getChildCount() != 1;
+                    if (byReference && args.getChild(i).getType() == AslLexer.ID)
+                        vars.add(args.getChild(i).getText());
+                }
+            }
+        }
+        int n = t.getChildCount();
+        for (int i = 0; i < n; ++i) collectEscapingVars(t.getChild(i), vars);
+    }
+
+    /**
+     * Collects the locks protecting updates that cannot be made atomic.
+     * It is done before the generation because the updates of a variable
+     * can appear in any order in the program.
+     */
+    private void collectLockedTargets() {
+        ArrayList<String> names = new ArrayList<String>();
+        for (String fname : listFunc) {
+            char last = fname.charAt(fname.length() - 1);
+            if (last != '$' && last != '_') names.add(fname);
+        }
+        names.add("main");
+        for (String fname : names) {
+            AslTree f = FuncName2Tree.get(fname);
+            currentFunction = f.getText();
+            escapingVars = getEscapingVars(f.getChild(2));
+            HashSet<String> refParams = new HashSet<String>();
+            AslTree params = f.getChild(1);
+            for (int i = 0; i < params.getChildCount(); ++i) {
+                AslTree p = params.getChild(i);
+                if (p.getChild(0).getType() == AslLexer.PREF || p.getChildCount() != 1)
+                    refParams.add(p.getChild(0).getText());
+            }
+            collectLockedTargets(f.getChild(2), refParams);
+        }
+        currentFunction = null;
+        escapingVars = new HashSet<String>();
+    }
+
+    private void collectLockedTargets(AslTree t, HashSet<String> refParams) {
+        if (t.getType() == AslLexer.ASSIGN) {
+            AslTree identNode = t.getChild(0);
+            String varName = identNode.getType() == AslLexer.OPENC ?
+                             identNode.getChild(0).getText() : identNode.getText();
+            if (getSyncKind(identNode, t.getChild(1)) == SyncKind.CRITICAL)
+                lockedTargets.add(getLockKey(getLockName(varName, refParams.contains(varName))));
+        }
+        int n = t.getChildCount();
+        for (int i = 0; i < n; ++i) collectLockedTargets(t.getChild(i), refParams);
+    }
+
+    /**
+     * Finds the shared integer variables that are only used in associative
+     * accumulations (x = x op e or x = e op x, op being +, - or *) inside
+     * a construct, always with the same operator. Each thread can accumulate
+     * into a private copy, combined at the end of the construct.
+     * @param t The AST of the parallel region or loop.
+     * @param onlyShared Says if only the shared variables are considered.
+     * @return The map from the name of each variable to its operator.
+     */
+    private LinkedHashMap<String,String> findReductions(AslTree t, boolean onlyShared) {
+        LinkedHashMap<String,String> reductions = new LinkedHashMap<String,String>();
+        HashMap<String,Integer> accumulations = new HashMap<String,Integer>();
+        HashSet<String> rejected = new HashSet<String>();
+        collectAccumulations(t, reductions, accumulations, rejected);
+
+        Iterator<String> it = reductions.keySet().iterator();
+        while (it.hasNext()) {
+            String name = it.next();
+            if (rejected.contains(name)) {
+                it.remove();
+                continue;
+            }
+            Data var = Stack.getVariable(name);
+            // x appears twice in each accumulation and nowhere else
+            if ((onlyShared && !var.isShared()) || var.isVector() || !var.isInteger() ||
+                countReferences(t, name) != 2 * accumulations.get(name))
+                it.remove();
+        }
+        return reductions;
+    }
+
+    private void collectAccumulations(AslTree t, LinkedHashMap<String,String> reductions,
+                                      HashMap<String,Integer> accumulations, HashSet<String> rejected) {
+        int n = t.getChildCount();
+        for (int i = 0; i < n; ++i) {
+            AslTree c = t.getChild(i);
+            // the tasks would get the private copies of the threads as firstprivate,
+            // the accumulations of a taskloop are reductions of the taskloop
+            if (c.getType() == AslLexer.TASKLOOP) {
+                collectModifiedVariables(c, rejected);
+                continue;
+            }
+            // variables declared inside the construct are already private
+            if (c.getType() == AslLexer.DECL) {
+                AslTree identNode = c.getChild(1);
+                rejected.add(identNode.getType() == AslLexer.OPENC ?
+                             identNode.getChild(0).getText() : identNode.getText());
+            }
+            // assignments of a for header are not accumulations
+            if (t.getType() == AslLexer.INSTR_BLOCK && c.getType() == AslLexer.ASSIGN) {
+                String op = getAccumulationOp(c);
+                if (op != null) {
+                    String name = c.getChild(0).getText();
+                    if (reductions.containsKey(name) && !reductions.get(name).equals(op))
+                        rejected.add(name);
+                    reductions.put(name, op);
+                    Integer count = accumulations.get(name);
+                    accumulations.put(name, count == null ? 1 : count + 1);
+                }
+            }
+            collectAccumulations(c, reductions, accumulations, rejected);
+        }
+    }
+
+    /**
+     * Returns the operator of an assignment x = x op e (or x = e op x for
+     * the commutative operators) on a scalar, null if it has another form.
+     */
+    private static String getAccumulationOp(AslTree t) {
+        AslTree identNode = t.getChild(0);
+        AslTree exprNode = t.getChild(1);
+        if (identNode.getType() != AslLexer.ID || exprNode.getChildCount() != 2) return null;
+        int op = exprNode.getType();
+        if (op != AslLexer.PLUS && op != AslLexer.MINUS && op != AslLexer.MUL) return null;
+
+        String name = identNode.getText();
+        AslTree left = exprNode.getChild(0);
+        AslTree right = exprNode.getChild(1);
+        if (sameTree(left, identNode) && !referencesVariable(right, name))
+            return exprNode.getText();
+        if (op != AslLexer.MINUS && sameTree(right, identNode) && !referencesVariable(left, name))
+            return exprNode.getText();
+        return null;
+    }
+
+    /**
+     * Generates the reduction clauses of a construct and privatizes the
+     * reduced variables while its body is generated.
+     */
+    private String generateReductionClauses(LinkedHashMap<String,String> reductions, AslTree t) {
+        String clauses = "";
+        for (String name : reductions.keySet()) {
+            String op = reductions.get(name);
+            clauses += " reduction(" + op + ":" + name + ")";
+            Stack.getVariable(name).setShared(false);
+            if (verbose) System.err.println ("Note: " + name + " is computed as a reduction (" + op + ") in the construct of line " + t.getLine());
+        }
+        return clauses;
+    }
+
+    /** Counts the uses of a variable in the AST. */
+    private static int countReferences(AslTree t, String name) {
+        int count = (t.getType() == AslLexer.ID && t.getText().equals(name)) ? 1 : 0;
+        // The name of a called function is not a variable
+        int first = t.getType() == AslLexer.FUNCALL ? 1 : 0;
+        int n = t.getChildCount();
+        for (int i = first; i < n; ++i) count += countReferences(t.getChild(i), name);
+        return count;
+    }
+
+    /**
+     * Decides how an assignment to a shared variable inside a parallel
+     * region must be synchronized. Updates of the form x = x op e (or
+     * x = e op x for the commutative operators) and v[i] = v[i] op e
+     * are lowered to an atomic update, plain assignments x = e to an
+     * atomic write. Everything else falls back to a critical section.
+     * @param identNode The left hand side of the assignment.
+     * @param exprNode The right hand side of the assignment.
+     * @return The kind of synchronization to emit.
+     */
+    private SyncKind getSyncKind(AslTree identNode, AslTree exprNode) {
+        String targetName = identNode.getType() == AslLexer.OPENC ?
+                            identNode.getChild(0).getText() : identNode.getText();
+
+        // The index of the element is evaluated outside the atomic construct
+        if (identNode.getType() == AslLexer.OPENC) {
+            AslTree index = identNode.getChild(1);
+            if (containsFuncall(index) || referencesVariable(index, targetName))
+                return SyncKind.CRITICAL;
+        }
+
+        if (containsFuncall(exprNode)) return SyncKind.CRITICAL;
+
+        if (!referencesVariable(exprNode, targetName)) return SyncKind.ATOMIC_WRITE;
+
+        // The arithmetic operators are only defined for integers
+        int op = exprNode.getType();
+        if (exprNode.getChildCount() != 2 ||
+            (op != AslLexer.PLUS && op != AslLexer.MINUS && op != AslLexer.MUL && op != AslLexer.DIV))
+            return SyncKind.CRITICAL;
+
+        AslTree left = exprNode.getChild(0);
+        AslTree right = exprNode.getChild(1);
+        if (sameTree(left, identNode) && !referencesVariable(right, targetName))
+            return SyncKind.ATOMIC_UPDATE;
+        if ((op == AslLexer.PLUS || op == AslLexer.MUL) &&
+            sameTree(right, identNode) && !referencesVariable(left, targetName))
+            return SyncKind.ATOMIC_UPDATE;
+
+        return SyncKind.CRITICAL;
+    }
+
+    /**
+     * Generates the right hand side of an atomic update. The operand that
+     * is not the updated variable is enclosed in parenthesis when it is
+     * not an atom, so that the generated statement keeps the x = x op (e)
+     * form required by OpenMP.
+     * @return The type of the expression.
+     */
+    private Data generateAtomicUpdate(AslTree identNode, AslTree exprNode, StringBuilder genCode) {
+        boolean targetFirst = sameTree(exprNode.getChild(0), identNode);
+        AslTree operand = exprNode.getChild(targetFirst ? 1 : 0);
+        boolean parens = operand.getChildCount() > 0 && operand.getType() != AslLexer.OPENC;
+        Data value;
+        Data value2;
+        if (targetFirst) {
+            value = generateExpression(exprNode.getChild(0), genCode);
+            genCode.append(" " + exprNode.getText() + " " + (parens ? "(" : ""));
+            value2 = generateExpression(operand, genCode);
+            genCode.append(parens ? ")" : "");
+        }
+        else {
+            genCode.append(parens ? "(" : "");
+            value = generateExpression(operand, genCode);
+            genCode.append((parens ? ")" : "") + " " + exprNode.getText() + " ");
+            value2 = generateExpression(exprNode.getChild(1), genCode);
+        }
+        checkInteger(value);
+        checkInteger(value2);
+        return value;
+    }
+
+    /** Checks whether two ASTs have the same structure and tokens. */
+    private static boolean sameTree(AslTree a, AslTree b) {
+        if (a.getType() != b.getType() || !a.getText().equals(b.getText())) return false;
+        int n = a.getChildCount();
+        if (n != b.getChildCount()) return false;
+        for (int i = 0; i < n; ++i) {
+            if (!sameTree(a.getChild(i), b.getChild(i))) return false;
+        }
+        return true;
+    }
+
+    /** Checks whether the variable (scalar or vector) is used in the AST. */
+    private static boolean referencesVariable(AslTree t, String name) {
+        if (t.getType() == AslLexer.ID && t.getText().equals(name)) return true;
+        // The name of a called function is not a variable
+        int first = t.getType() == AslLexer.FUNCALL ? 1 : 0;
+        int n = t.getChildCount();
+        for (int i = first; i < n; ++i) {
+            if (referencesVariable(t.getChild(i), name)) return true;
+        }
+        return false;
+    }
+
+    /** Checks whether the AST contains a function call. */
+    private static boolean containsFuncall(AslTree t) {
+        if (t.getType() == AslLexer.FUNCALL) return true;
+        int n = t.getChildCount();
+        for (int i = 0; i < n; ++i) {
+            if (containsFuncall(t.getChild(i))) return true;
+        }
+        return false;
+    }
+
     /**
      * Evaluates the expression represented in the AST t.
      * @param t The AST of the expression
@@ -990,6 +4231,13 @@ public class Interp {
     private Data generateExpression(AslTree t, StringBuilder genCode) {
         assert t != null;
 
+        // index reduced in a loop
+        String offset = indexOffsets.get(t);
+        if (offset != null) {
+            genCode.append(offset);
+            return new Data("int");
+        }
+
         int previous_line = lineNumber();
         setLineNumber(t);
         int type = t.getType();
@@ -1006,7 +4254,7 @@ public class Interp {
             // An integer literal
             case AslLexer.OPENC:
                 
-                genCode.append(t.getChild(0).getText() + "[");
+                genCode.append(getVectorAccess(t.getChild(0).getText()) + "[");
                 Data vectorIndex = generateExpression(t.getChild(1), genCode);
                 genCode.append("]");
                     
@@ -1032,6 +4280,8 @@ public class Interp {
             // A function call. Checks that the function returns a result.
             case AslLexer.FUNCALL:
                     value = generateFuncall(t, genCode);
+                    if (value.isVoid())
+                        throw new RuntimeException ("The function " + t.getChild(0).getText() + " doesn't return a value:" + lineNumber());
                 break;
             default: break;
         }
@@ -1093,9 +4343,9 @@ public class Interp {
             case AslLexer.GT:
             case AslLexer.GE:
                 //given that c permits boolean comparison we do too
-                value = generateExpression(t.getChild(0), genCode);
+                value = generateOperand(t, 0, genCode);
                 genCode.append(" " + t.getText() + " ");
-                value2 = generateExpression(t.getChild(1), genCode);
+                value2 = generateOperand(t, 1, genCode);
                 
                 if (! value.getType().equals(value2.getType())) {
                     throw new RuntimeException ("Incompatible types in relational expression");
@@ -1110,9 +4360,9 @@ public class Interp {
             case AslLexer.DIV:
             case AslLexer.MOD:
              
-                value = generateExpression(t.getChild(0), genCode);
+                value = generateOperand(t, 0, genCode);
                 genCode.append(" " + t.getText() + " ");
-                value2 = generateExpression(t.getChild(1), genCode);
+                value2 = generateOperand(t, 1, genCode);
                 if (!value.getType().equals(value2.getType())) {
                     throw new RuntimeException ("Incompatible types in arithmetic expression");
                 }
@@ -1134,6 +4384,44 @@ public class Interp {
         return value;
     }
     
+    /**
+     * Generates an operand of a binary operator. The AST has no nodes for
+     * the parentheses, so they are added when the operand has a lower
+     * precedence than the operator, or the same one on its right side.
+     */
+    private Data generateOperand(AslTree t, int i, StringBuilder genCode) {
+        AslTree operand = t.getChild(i);
+        int p = getPrecedence(operand);
+        int q = getPrecedence(t);
+        // C++ has two levels of relational operators
+        boolean parens = p != 0 && (p < q || (p == q && (i == 1 || p == 3)));
+        if (parens) genCode.append("(");
+        Data value = generateExpression(operand, genCode);
+        if (parens) genCode.append(")");
+        return value;
+    }
+
+    /** Returns the precedence of a binary operator, 0 if it is not one. */
+    private static int getPrecedence(AslTree t) {
+        if (t.getChildCount() != 2) return 0;
+        switch (t.getType()) {
+            case AslLexer.OR: return 1;
+            case AslLexer.AND: return 2;
+            case AslLexer.EQUALEQUAL:
+            case AslLexer.NOT_EQUAL:
+            case AslLexer.LT:
+            case AslLexer.LE:
+            case AslLexer.GT:
+            case AslLexer.GE: return 3;
+            case AslLexer.PLUS:
+            case AslLexer.MINUS: return 4;
+            case AslLexer.MUL:
+            case AslLexer.DIV:
+            case AslLexer.MOD: return 5;
+            default: return 0;
+        }
+    }
+
     /**
      * Evaluation of Boolean expressions. This function implements
      * a short-circuit evaluation. The second operand is still a tree
@@ -1147,12 +4435,11 @@ public class Interp {
     private Data evaluateBoolean (AslTree t, StringBuilder genCode) {
         // Boolean evaluation with short-circuit
 
-        Data leftOperandType = generateExpression(t.getChild(0), genCode);
+        Data leftOperandType = generateOperand(t, 0, genCode);
         checkBoolean(leftOperandType);
         genCode.append(" " + t.getText() + " ");
-        Data rightOperandType = generateExpression(t.getChild(1), genCode);
+        Data rightOperandType = generateOperand(t, 1, genCode);
         checkBoolean(rightOperandType);
-        genCode.append(";" + "\n");
         return leftOperandType; //the type is the same
     }
 
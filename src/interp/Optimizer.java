@@ -0,0 +1,381 @@
+package interp;
+
+import parser.*;
+import java.util.HashMap;
+
+/**
+ * Class to optimize the AST before the code is generated. It inlines
+ * the calls to small functions, folds the constant expressions and
+ * propagates the constants assigned to the local variables.
+ * The inlined functions only evaluate an expression, so the serial,
+ * the parallel and the not_sync versions of them are the same: the
+ * calls of the expression (builtins) are generated in the context of
+ * the caller.
+ */
+public class Optimizer {
+
+    /** Maximum number of nodes of the expression of an inlined function */
+    private static final int INLINE_SIZE = 16;
+
+    /** Root of the AST (PROG) */
+    private AslTree root;
+
+    /** Map from the names of the functions to the AST nodes */
+    private HashMap<String,AslTree> functions;
+
+    /** Constructor of the optimizer of the AST */
+    public Optimizer(AslTree T) {
+        root = T;
+        functions = new HashMap<String,AslTree>();
+        for (int i = 0; i < T.getChildCount(); ++i) {
+            AslTree f = T.getChild(i);
+            if (f.getType() != AslLexer.MAIN) functions.put(f.getText(), f);
+        }
+    }
+
+    /** Optimizes the AST. */
+    public void run() {
+        // The inlined expressions have no calls, so each round
+        // reduces the number of calls
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < root.getChildCount(); ++i) {
+                AslTree f = root.getChild(i);
+                changed |= inlineCalls(f, f.getChild(2));
+            }
+        }
+        for (int i = 0; i < root.getChildCount(); ++i) {
+            AslTree body = root.getChild(i).getChild(2);
+            fold(body);
+            while (propagateConstants(body)) fold(body);
+        }
+    }
+
+    /**
+     * Replaces the calls used in expressions by the expression
+     * returned by the callee, when it can be inlined.
+     * @param f The AST node of the function containing the calls.
+     */
+    private boolean inlineCalls(AslTree f, AslTree t) {
+        boolean changed = false;
+        // the calls used as instructions are not expressions
+        boolean isStatement = t.getType() == AslLexer.INSTR_BLOCK || t.getType() == AslLexer.SPAWN;
+        for (int i = 0; i < t.getChildCount(); ++i) {
+            AslTree c = t.getChild(i);
+            if (c.getType() == AslLexer.FUNCALL && !isStatement) {
+                AslTree inlined = getInlinedCall(f, c);
+                if (inlined != null) {
+                    t.setChild(i, inlined);
+                    changed = true;
+                    continue;
+                }
+            }
+            changed |= inlineCalls(f, c);
+        }
+        return changed;
+    }
+
+    /**
+     * Returns the expression equivalent to a call, null if the
+     * callee can't be inlined. The arguments must be variables or
+     * literals of the type of the parameters, so that they are
+     * evaluated once and the types are still checked.
+     */
+    private AslTree getInlinedCall(AslTree f, AslTree call) {
+        AslTree callee = functions.get(call.getChild(0).getText());
+        if (callee == null) return null;
+        AslTree expr = getInlinableExpression(callee);
+        if (expr == null) return null;
+
+        AslTree params = callee.getChild(1);
+        AslTree args = call.getChild(1);
+        if (params.getChildCount() != args.getChildCount()) return null;
+        HashMap<String,AslTree> actual = new HashMap<String,AslTree>();
+        for (int i = 0; i < params.getChildCount(); ++i) {
+            AslTree p = params.getChild(i);
+            AslTree a = args.getChild(i);
+            String paramType = p.getText() + (p.getChildCount() != 1 ? "[]" : "");
+            String argType;
+            switch (a.getType()) {
+                case AslLexer.ID: argType = getVariableType(f, a.getText()); break;
+                case AslLexer.INTLIT: argType = "int"; break;
+                case AslLexer.BOOLEAN: argType = "bool"; break;
+                default: return null;
+            }
+            if (!paramType.equals(argType)) return null;
+            actual.put(p.getChild(0).getText(), a);
+        }
+        return substitute(expr, actual, call);
+    }
+
+    /**
+     * Returns the expression of a function that only returns an
+     * expression of its parameters passed by value, null if it is
+     * not small or it calls other functions.
+     */
+    private AslTree getInlinableExpression(AslTree f) {
+        AslTree body = f.getChild(2);
+        if (body.getChildCount() != 1) return null;
+        AslTree ret = body.getChild(0);
+        if (ret.getType() != AslLexer.RETURN || ret.getChildCount() != 1) return null;
+
+        AslTree params = f.getChild(1);
+        HashMap<String,AslTree> names = new HashMap<String,AslTree>();
+        for (int i = 0; i < params.getChildCount(); ++i) {
+            AslTree p = params.getChild(i);
+            if (p.getChild(0).getType() == AslLexer.PREF) return null;
+            names.put(p.getChild(0).getText(), p);
+        }
+        AslTree expr = ret.getChild(0);
+        if (size(expr) > INLINE_SIZE || !onlyUses(expr, names)) return null;
+        return expr;
+    }
+
+    /** Checks that the expression uses no other variables and calls no user functions. */
+    private boolean onlyUses(AslTree t, HashMap<String,AslTree> names) {
+        int first = 0;
+        if (t.getType() == AslLexer.FUNCALL) {
+            if (functions.containsKey(t.getChild(0).getText())) return false;
+            // The name of a called function is not a variable
+            first = 1;
+        }
+        if (t.getType() == AslLexer.ID && !names.containsKey(t.getText())) return false;
+        for (int i = first; i < t.getChildCount(); ++i) {
+            if (!onlyUses(t.getChild(i), names)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the type of a variable of a function (with [] for the
+     * vectors), null if it is not declared.
+     */
+    private static String getVariableType(AslTree f, String name) {
+        AslTree params = f.getChild(1);
+        for (int i = 0; i < params.getChildCount(); ++i) {
+            AslTree p = params.getChild(i);
+            if (p.getChild(0).getText().equals(name))
+                return p.getText() + (p.getChildCount() != 1 ? "[]" : "");
+        }
+        return getDeclaredType(f.getChild(2), name);
+    }
+
+    private static String getDeclaredType(AslTree t, String name) {
+        if (t.getType() == AslLexer.DECL) {
+            AslTree identNode = t.getChild(1);
+            if (identNode.getType() == AslLexer.ID && identNode.getText().equals(name))
+                return t.getChild(0).getText();
+            if (identNode.getType() == AslLexer.OPENC && identNode.getChild(0).getText().equals(name))
+                return t.getChild(0).getText() + "[]";
+            return null;
+        }
+        for (int i = 0; i < t.getChildCount(); ++i) {
+            String type = getDeclaredType(t.getChild(i), name);
+            if (type != null) return type;
+        }
+        return null;
+    }
+
+    /**
+     * Returns a copy of the expression in which the parameters are
+     * replaced by the arguments. The nodes take the line of the call.
+     */
+    private static AslTree substitute(AslTree t, HashMap<String,AslTree> actual, AslTree call) {
+        AslTree arg = t.getType() == AslLexer.ID ? actual.get(t.getText()) : null;
+        AslTree copy = new AslTree(arg != null ? arg.getType() : t.getType(),
+                               arg != null ? arg.getText() : t.getText(), call);
+        for (int i = 0; i < t.getChildCount(); ++i)
+            copy.addChild(substitute(t.getChild(i), actual, call));
+        return copy;
+    }
+
+    /** Returns the number of nodes of the AST. */
+    private static int size(AslTree t) {
+        int n = 1;
+        for (int i = 0; i < t.getChildCount(); ++i) n += size(t.getChild(i));
+        return n;
+    }
+
+    /**
+     * Folds the operations with constant operands. The negative
+     * constants are represented with the unary minus.
+     * @return The folded AST (t if it is not a constant operation).
+     */
+    static AslTree fold(AslTree t) {
+        for (int i = 0; i < t.getChildCount(); ++i) {
+            AslTree c = t.getChild(i);
+            AslTree folded = fold(c);
+            if (folded != c) t.setChild(i, folded);
+        }
+
+        int type = t.getType();
+        if (t.getChildCount() == 1) {
+            Long v = getIntConstant(t.getChild(0));
+            switch (type) {
+                case AslLexer.PLUS:
+                    if (v != null) return t.getChild(0);
+                    break;
+                case AslLexer.MINUS:
+                    // -lit is already a constant
+                    if (v != null && t.getChild(0).getType() != AslLexer.INTLIT) return newInt(-v, t);
+                    break;
+                case AslLexer.NOT:
+                    if (t.getChild(0).getType() == AslLexer.BOOLEAN)
+                        return newBoolean(t.getChild(0).getText().equals("false"), t);
+                    break;
+                default: break;
+            }
+            return t;
+        }
+        if (t.getChildCount() != 2) return t;
+
+        Long v1 = getIntConstant(t.getChild(0));
+        Long v2 = getIntConstant(t.getChild(1));
+        if (v1 != null && v2 != null) {
+            long a = v1, b = v2;
+            switch (type) {
+                case AslLexer.PLUS: return newInt(a + b, t);
+                case AslLexer.MINUS: return newInt(a - b, t);
+                case AslLexer.MUL: return newInt(a * b, t);
+                case AslLexer.DIV: return b != 0 ? newInt(a / b, t) : t;
+                case AslLexer.MOD: return b != 0 ? newInt(a % b, t) : t;
+                case AslLexer.EQUALEQUAL: return newBoolean(a == b, t);
+                case AslLexer.NOT_EQUAL: return newBoolean(a != b, t);
+                case AslLexer.LT: return newBoolean(a < b, t);
+                case AslLexer.LE: return newBoolean(a <= b, t);
+                case AslLexer.GT: return newBoolean(a > b, t);
+                case AslLexer.GE: return newBoolean(a >= b, t);
+                default: return t;
+            }
+        }
+        if (t.getChild(0).getType() == AslLexer.BOOLEAN && t.getChild(1).getType() == AslLexer.BOOLEAN) {
+            boolean a = t.getChild(0).getText().equals("true");
+            boolean b = t.getChild(1).getText().equals("true");
+            switch (type) {
+                case AslLexer.AND: return newBoolean(a && b, t);
+                case AslLexer.OR: return newBoolean(a || b, t);
+                case AslLexer.EQUALEQUAL: return newBoolean(a == b, t);
+                case AslLexer.NOT_EQUAL: return newBoolean(a != b, t);
+                default: return t;
+            }
+        }
+        return t;
+    }
+
+    /** Returns the value of an integer constant, null if it is not a constant. */
+    static Long getIntConstant(AslTree t) {
+        if (t.getType() == AslLexer.INTLIT) return Long.parseLong(t.getText());
+        if (t.getType() == AslLexer.MINUS && t.getChildCount() == 1 &&
+            t.getChild(0).getType() == AslLexer.INTLIT)
+            return -Long.parseLong(t.getChild(0).getText());
+        return null;
+    }
+
+    /**
+     * Propagates the constants assigned to the local scalars that are
+     * assigned once, by an instruction of the body of the function.
+     * The following instructions read the constant instead of the
+     * variable. The variables whose value can be read in other ways
+     * (reference parameters, private copies, ...) are not propagated.
+     */
+    private boolean propagateConstants(AslTree body) {
+        boolean changed = false;
+        int n = body.getChildCount();
+        for (int i = 0; i < n; ++i) {
+            AslTree s = body.getChild(i);
+            if (s.getType() != AslLexer.ASSIGN || s.getChild(0).getType() != AslLexer.ID) continue;
+            AslTree value = s.getChild(1);
+            if (getIntConstant(value) == null && value.getType() != AslLexer.BOOLEAN) continue;
+            String name = s.getChild(0).getText();
+            // besides the reads, the declaration and the assignment
+            if (!"int".equals(getDeclaredType(body, name)) && !"bool".equals(getDeclaredType(body, name))) continue;
+            if (countReferences(body, name) != countReads(body, name) + 2) continue;
+            for (int j = i + 1; j < n; ++j) changed |= replaceReads(body.getChild(j), name, value);
+        }
+        return changed;
+    }
+
+    /** Says if the i-th child of t, a variable, is read as a value. */
+    private boolean isRead(AslTree t, int i) {
+        switch (t.getType()) {
+            case AslLexer.ASSIGN: return i != 0;
+            case AslLexer.OPENC: return i == 1;
+            case AslLexer.PAR_ASSIGN:
+            case AslLexer.READALL: return i != 0;
+            case AslLexer.SCHEDULE: return i == 1;
+            case AslLexer.FUNCALL: return i != 0;
+            case AslLexer.ARGLIST:
+            {
+                AslTree callee = functions.get(((AslTree) t.getParent()).getChild(0).getText());
+                if (callee == null || i >= callee.getChild(1).getChildCount()) return true;
+                AslTree p = callee.getChild(1).getChild(i);
+                return p.getChild(0).getType() != AslLexer.PREF && p.getChildCount() == 1;
+            }
+            case AslLexer.DECL:
+            case AslLexer.READ:
+            case AslLexer.LOAD:
+            case AslLexer.FIRST_PRIVATE_VAR:
+            case AslLexer.PRIVATE_VAR:
+            case AslLexer.REDUCTION:
+            case AslLexer.BIND:
+            case AslLexer.ALIGNED:
+                return false;
+            default: return true;
+        }
+    }
+
+    /** Counts the reads of a variable in the AST. */
+    private int countReads(AslTree t, String name) {
+        int count = 0;
+        for (int i = 0; i < t.getChildCount(); ++i) {
+            AslTree c = t.getChild(i);
+            if (c.getType() == AslLexer.ID) {
+                if (c.getText().equals(name) && isRead(t, i)) ++count;
+            }
+            else count += countReads(c, name);
+        }
+        return count;
+    }
+
+    /** Counts the nodes naming a variable in the AST. */
+    private static int countReferences(AslTree t, String name) {
+        int count = t.getType() == AslLexer.ID && t.getText().equals(name) ? 1 : 0;
+        // The name of a called function is not a variable
+        int first = t.getType() == AslLexer.FUNCALL ? 1 : 0;
+        for (int i = first; i < t.getChildCount(); ++i) count += countReferences(t.getChild(i), name);
+        return count;
+    }
+
+    /** Replaces the reads of a variable by a constant. */
+    private boolean replaceReads(AslTree t, String name, AslTree value) {
+        boolean changed = false;
+        for (int i = 0; i < t.getChildCount(); ++i) {
+            AslTree c = t.getChild(i);
+            if (c.getType() == AslLexer.ID) {
+                if (c.getText().equals(name) && isRead(t, i)) {
+                    t.setChild(i, substitute(value, new HashMap<String,AslTree>(), c));
+                    changed = true;
+                }
+            }
+            else changed |= replaceReads(c, name, value);
+        }
+        return changed;
+    }
+
+    /** Creates an integer constant (a literal, negated if it is negative). */
+    private static AslTree newInt(long v, AslTree origin) {
+        if (v <= Integer.MIN_VALUE || v > Integer.MAX_VALUE) return origin;
+        AslTree lit = new AslTree(AslLexer.INTLIT, Long.toString(Math.abs(v)), origin);
+        if (v >= 0) return lit;
+        AslTree minus = new AslTree(AslLexer.MINUS, "-", origin);
+        minus.addChild(lit);
+        return minus;
+    }
+
+    /** Creates a Boolean literal. */
+    private static AslTree newBoolean(boolean b, AslTree origin) {
+        return new AslTree(AslLexer.BOOLEAN, b ? "true" : "false", origin);
+    }
+
+}
@@ -118,6 +118,11 @@ public class Stack {
         return v;
     }
 
+    /** Checks whether the variable is defined in the current activation record. */
+    public boolean isDefined(String name) {
+        return CurrentAR.containsKey(name);
+    }
+
     /*Throws exception if the variale name doesn't exist*/
     public void checkVariableExists(String name) {
         Data v = CurrentAR.get(name);
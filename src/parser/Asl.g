@@ -42,6 +42,7 @@ instruction
 			|	return_stmt ';'!    // Return statement
 			|	read ';'!          // Read a variable
 			| 	write ';'!          // Write a string or an expression
+			|	bulk_io ';'!        // Read or write a whole vector
 			|	meufor
 			|	parallel_instruction
 			|	decl ';'!
@@ -70,7 +71,7 @@ paramlist: param (','! param)*
         ;//preguntar si se debe implementar paso por valor o por referencia
  
 param	:	type '&' id=ID -> ^(type PREF[$id,$id.text])
-		|	type id=ID (OPENC CLOSEC)? -> ^(type PVALUE[$id,$id.text] OPENC?)
+		|	type id=ID (OPENC CLOSEC)* -> ^(type PVALUE[$id,$id.text] OPENC*)
 		;
 
 block_instructions	: '{' instruction* '}' -> ^(INSTR_BLOCK instruction*)
@@ -79,15 +80,45 @@ block_instructions	: '{' instruction* '}' -> ^(INSTR_BLOCK instruction*)
 //parallel_instruction_block : BEGIN_PARALLEL '{'! parallel_bloc_header block_instructions'}'!  END_PARALLEL
 
 
-parallel_instruction	:	BEGIN_PARALLEL^  parallel_bloc_header_first parallel_bloc_header block_instructions END_PARALLEL! |
+parallel_instruction	:	BEGIN_PARALLEL region_clause* parallel_bloc_header_first parallel_bloc_header block_instructions END_PARALLEL
+						    -> ^(BEGIN_PARALLEL parallel_bloc_header_first? parallel_bloc_header? region_clause* block_instructions) |
 						    NOT_SYNC^ block_instructions	|
-							PARALLEL_FOR for_header reduction_clause? block_instructions 
-						    -> ^(PARALLEL_FOR for_header  block_instructions reduction_clause?) |
-							ID eq=PAR_EQUAL ID '$' expr '$;'-> ^(PAR_ASSIGN[$eq,":="] ID ID expr) |
+							PARALLEL_FOR for_header for_clause* block_instructions 
+						    -> ^(PARALLEL_FOR for_header  block_instructions for_clause*) |
+							TASKLOOP for_header for_clause* block_instructions 
+						    -> ^(TASKLOOP for_header  block_instructions for_clause*) |
+							// bulk operation on the first elements of vectors (a := b + c $n$;)
+							ID eq=PAR_EQUAL expr '$' expr '$;'-> ^(PAR_ASSIGN[$eq,":="] ID expr expr) |
+							SPAWN^ funcall ';'! |
+							SYNC ';'! |
 							BARRIER;
 
+for_clause				:	reduction_clause | schedule_clause | collapse_clause | tile_clause | simd_clause ;
+
+loop_clause				:	tile_clause | simd_clause ;
+
+region_clause			:	num_threads_clause | bind_clause ;
+
+num_threads_clause		:	NUM_THREADS^ '('! expr ')'! ;
+
+// the policy (close, spread or master) is checked by the interpreter
+bind_clause				:	BIND^ '('! ID ')'! ;
+
 reduction_clause		:	REDUCTION^ '('! (PLUS|MINUS|AND|MUL) ':'! ID ')';
 
+// the kind (static, dynamic, guided, auto or runtime) is checked by the interpreter
+schedule_clause			:	SCHEDULE^ '('! ID (','! expr)? ')'! ;
+
+collapse_clause			:	COLLAPSE^ '('! INTLIT ')'! ;
+
+tile_clause				:	TILE^ '('! INTLIT (','! INTLIT)* ')'! ;
+
+simd_clause				:	SIMD^ ('('! simd_option (','! simd_option)* ')'!)? ;
+
+simd_option				:	SAFELEN^ '('! INTLIT ')'!
+						|	ALIGNED^ '('! ID (','! ID)* ')'!
+						;
+
 parallel_bloc_header_first : (FIRST_PRIVATE_VAR^ ':'! ID (','! ID)* ';'!)? ;
 
 //variables compartidas por defecto
@@ -108,7 +139,8 @@ ite_stmt	:	IF^ '('! expr ')'!  block_instructions  (ELSE! block_instructions)?
             ; //bloque instrucciones debe ser { instrucciones* }
 
 // while statement
-meufor	:	FOR^ for_header block_instructions 
+meufor	:	FOR for_header loop_clause* block_instructions 
+			-> ^(FOR for_header block_instructions loop_clause*)
             ;
 
 // Return statement with an expression
@@ -123,6 +155,12 @@ read	:	READ^ ID
 write	:   WRITE^ (expr | STRING )
         ;
 
+// Bulk input/output of vectors: binary files and the elements of the input
+bulk_io	:	LOAD^ ID STRING
+		|	STORE^ ID STRING
+		|	READALL^ ID expr
+        ;
+
 // Grammar for expressions with boolean, relational and aritmetic operators
 expr    :   boolterm (OR^ boolterm)*
         ;
@@ -152,7 +190,8 @@ atom    :  ident
         |   '('! expr ')'!
         ;
 
-ident   :  ID (OPENC^ expr CLOSEC!)?
+// the subscripts of multidimensional arrays are children of the same node
+ident   :  ID (OPENC^ expr CLOSEC! (OPENC! expr CLOSEC!)*)?
 		  ;
 
 // A function call has a lits of arguments in parenthesis (possibly empty)
@@ -194,17 +233,31 @@ IF  	: 'if' ;
 ELSE	: 'else' ;
 BARRIER : 'barrier';
 PARALLEL_FOR	:	'parallel_for';
+TASKLOOP	:	'taskloop';
+SPAWN	:	'spawn';
+SYNC	:	'sync';
 PRIVATE_VAR		:	'private_var';
 FIRST_PRIVATE_VAR		:	'first_private_var';
 BEGIN_PARALLEL	:	'begin_parallel';
 END_PARALLEL	:	'end_parallel';
 NOT_SYNC			:	'not_sync';
+NUM_THREADS		:	'num_threads';
+BIND			:	'bind';
 REDUCTION		:	'reduction';
+SCHEDULE		:	'schedule';
+COLLAPSE		:	'collapse';
+TILE			:	'tile';
+SIMD			:	'simd';
+SAFELEN			:	'safelen';
+ALIGNED			:	'aligned';
 FOR	:	'for';
 FUNC	: 'func' ;
 RETURN	: 'return' ;
 READ	: 'read' ;
 WRITE	: 'write' ;
+LOAD	: 'load' ;
+STORE	: 'store' ;
+READALL	: 'readall' ;
 TRUE    : 'true' ;
 FALSE   : 'false';
 ID  	:	('a'..'z'|'A'..'Z'|'_') ('a'..'z'|'A'..'Z'|'0'..'9'|'_')* ;